@@ -0,0 +1,75 @@
+package nl.kw.processing.mirror.benchmark;
+import processing.core.*;
+import java.util.Random;
+
+/**
+* Sketch bits for the benchmarks, without a window.
+*/
+
+class Canvas {
+  
+  private static final Random random = new Random(1);
+  
+  /**
+  * An applet whose g can do colors, but not draw
+  */
+  
+  static PApplet applet() {
+    PApplet applet = new PApplet();
+    applet.g = software(applet,1,1);
+    return applet;
+  }
+  
+  /**
+  * A PGraphics without a renderer, filled with noise.
+  * get(), set() and pixels[] work; drawing does not.
+  */
+  
+  static PGraphics software(PApplet applet, int w, int h) {
+    PGraphics g = new PGraphics();
+    g.setParent(applet);
+    g.setPrimary(false);
+    g.setSize(w,h);
+    g.colorMode(PConstants.RGB,255);
+    g.loadPixels();
+    noise(g.pixels);
+    return g;
+  }
+  
+  /**
+  * A JAVA2D PGraphics filled with noise. 
+  * This needs a display, eg xvfb-run.
+  */
+  
+  static PGraphics renderer(PApplet applet, int w, int h) {
+    PGraphics g = applet.createGraphics(w,h);
+    g.beginDraw();
+    g.loadPixels();
+    noise(g.pixels);
+    g.updatePixels();
+    g.endDraw();
+    return g;
+  }
+  
+  static int[] pixels(int w, int h) {
+    int[] pixels = new int[w*h];
+    noise(pixels);
+    return pixels;
+  }
+  
+  static void noise(int[] pixels) {
+    for (int i=0; i<pixels.length; i++) {
+      pixels[i] = 0xff000000 | random.nextInt();
+    }
+  }
+  
+  /**
+  * Parse a size like "1920x1080"
+  */
+  
+  static int[] size(String size) {
+    String[] wh = size.split("x");
+    return new int[] { Integer.parseInt(wh[0]), Integer.parseInt(wh[1]) };
+  }
+  
+}
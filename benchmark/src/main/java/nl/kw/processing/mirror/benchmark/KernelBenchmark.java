@@ -0,0 +1,70 @@
+package nl.kw.processing.mirror.benchmark;
+import nl.kw.processing.mirror.MirrorKernel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* MirrorKernel.applyMirage() on a plain int[],
+* with each sampling mode, with and without the
+* remap table, on one thread and on all cores.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class KernelBenchmark {
+  
+  @Param({"300x300", "1280x720", "1920x1080", "3840x2160"})
+  public String size;
+  
+  @Param({"0", "0.7853982", "1.5707964", "1.569", "-1.569", "3.1415927"})
+  public float alpha;
+  
+  @Param({"NEAREST", "BILINEAR"})
+  public String sampling;
+  
+  @Param({"false", "true"})
+  public boolean remap;
+  
+  // 0 is all cores
+  @Param({"1", "0"})
+  public int parallelism;
+  
+  private int w, h;
+  private int[] pixels;
+  private int[] original;
+  private MirrorKernel kernel;
+  
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    int[] wh = Canvas.size(size);
+    w = wh[0];
+    h = wh[1];
+    original = Canvas.pixels(w,h);
+    pixels = original.clone();
+    kernel = new MirrorKernel(10,-20,alpha);
+    kernel.setSampling(MirrorKernel.class.getField(sampling).getInt(null));
+    kernel.setRemap(remap);
+    kernel.setParallelism(parallelism>0?parallelism:Runtime.getRuntime().availableProcessors());
+  }
+  
+  @Setup(Level.Invocation)
+  public void reset() {
+    System.arraycopy(original,0,pixels,0,original.length);
+  }
+  
+  @TearDown(Level.Trial)
+  public void dispose() {
+    kernel.dispose();
+  }
+  
+  @Benchmark
+  public int[] applyMirage() {
+    kernel.applyMirage(pixels,w,h);
+    return pixels;
+  }
+  
+}
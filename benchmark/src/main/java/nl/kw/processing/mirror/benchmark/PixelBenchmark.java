@@ -0,0 +1,128 @@
+package nl.kw.processing.mirror.benchmark;
+import nl.kw.processing.mirror.Mirror;
+import processing.core.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+* The pixel paths of Mirror: the x,y drawMirage() loop,
+* the pixels[] drawMirage() loop, applyMirage() and
+* the getMirage(x,y) point transform, one by one and
+* in a batch. These run without a display.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class PixelBenchmark {
+  
+  static final int POINTS = 1<<16;
+  
+  @Param({"300x300", "1280x720", "1920x1080", "3840x2160"})
+  public String size;
+  
+  @Param({"0", "0.7853982", "1.5707964", "1.569", "-1.569", "3.1415927"})
+  public float alpha;
+  
+  @Param({"false", "true"})
+  public boolean tinted;
+  
+  private PGraphics g;
+  private int[] original;
+  private Mirror mirror;
+  private float[] points;
+  private float[] xs, ys, outx, outy;
+  private long[] inside;
+  
+  @Setup(Level.Trial)
+  public void setup() {
+    int[] wh = Canvas.size(size);
+    PApplet applet = Canvas.applet();
+    g = Canvas.software(applet,wh[0],wh[1]);
+    original = g.pixels.clone();
+    if (tinted) {
+      mirror = new Mirror(applet,10,-20,alpha,0x80aaffaa);
+    } else {
+      mirror = new Mirror(applet,10,-20,alpha);
+    }
+    points = new float[POINTS*2];
+    for (int i=0; i<points.length; i+=2) {
+      points[i] = (float)(Math.random()-.5)*wh[0];
+      points[i+1] = (float)(Math.random()-.5)*wh[1];
+    }
+    xs = new float[POINTS];
+    ys = new float[POINTS];
+    for (int i=0; i<POINTS; i++) {
+      xs[i] = points[2*i];
+      ys[i] = points[2*i+1];
+    }
+    outx = new float[POINTS];
+    outy = new float[POINTS];
+    inside = new long[POINTS/64];
+  }
+  
+  // every call draws on the result of 
+  // the last one, so start over each time
+  @Setup(Level.Invocation)
+  public void reset() {
+    System.arraycopy(original,0,g.pixels,0,original.length);
+  }
+  
+  @Benchmark
+  public PGraphics drawMirageXY() {
+    for (int x=-g.width/2; x < g.width/2; x++) {
+      for (int y=-g.height/2; y < g.height/2; y++) {
+        mirror.drawMirage(g,x,y);
+      }
+    }
+    return g;
+  }
+  
+  @Benchmark
+  public PGraphics drawMiragePixels() {
+    g.loadPixels();
+    for (int pc=0; pc < g.pixels.length; pc++) {
+      mirror.drawMirage(g,pc,true);
+    }
+    g.updatePixels();
+    return g;
+  }
+  
+  @Benchmark
+  public PGraphics applyMirage() {
+    mirror.applyMirage(g);
+    return g;
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void getMiragePoint(Blackhole bh) {
+    for (int i=0; i<points.length; i+=2) {
+      PVector v = mirror.getMirage(points[i],points[i+1]);
+      bh.consume(v.x);
+      bh.consume(v.y);
+    }
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public float[] getMiragePoints() {
+    mirror.getMirage(xs,ys,outx,outy,POINTS);
+    return outx;
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public long[] isInsidePoints() {
+    mirror.isInside(xs,ys,inside,POINTS);
+    return inside;
+  }
+  
+}
@@ -0,0 +1,53 @@
+package nl.kw.processing.mirror.benchmark;
+import nl.kw.processing.mirror.Mirror;
+import processing.core.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* The renderer paths of Mirror: getFullMirage() and 
+* getMirage(PImage) with each mask mode. These draw
+* on JAVA2D surfaces, so they need a display; on a
+* server, run them with xvfb-run.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class RendererBenchmark {
+  
+  @Param({"300x300", "1280x720", "1920x1080", "3840x2160"})
+  public String size;
+  
+  @Param({"0", "0.7853982", "1.5707964", "1.569", "-1.569", "3.1415927"})
+  public float alpha;
+  
+  @Param({"MASK_SHAPE", "MASK_ANALYTIC", "MASK_SMOOTH"})
+  public String mask;
+  
+  private PGraphics source;
+  private Mirror mirror;
+  
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    int[] wh = Canvas.size(size);
+    PApplet applet = Canvas.applet();
+    source = Canvas.renderer(applet,wh[0],wh[1]);
+    mirror = new Mirror(applet,10,-20,alpha);
+    mirror.setMaskMode(Mirror.class.getField(mask).getInt(null));
+  }
+  
+  @Benchmark
+  public PImage getFullMirage() {
+    return mirror.getFullMirage(source);
+  }
+  
+  @Benchmark
+  public PImage getMirage() {
+    return mirror.getMirage(source);
+  }
+  
+}
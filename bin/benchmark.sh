@@ -0,0 +1,27 @@
+#!/bin/sh
+
+# Build and run the JMH benchmarks in ./benchmark.
+# Any arguments are passed on to JMH, eg
+#   bin/benchmark.sh PixelBenchmark -p size=1920x1080
+# The RendererBenchmark needs a display; on a
+# server, run this with xvfb-run.
+
+cd `dirname $0`/..
+
+echo
+echo 'Building benchmark/target/benchmarks.jar ..'
+
+(cd benchmark && mvn -B -q package)
+failure=$?
+
+if [ $failure -eq 0 ]; then
+
+	echo 'Running benchmarks, with allocation profiling ..'
+	java -jar benchmark/target/benchmarks.jar -prof gc "$@"
+	failure=$?
+	
+fi
+
+cd - &>/dev/null
+
+exit $failure;
@@ -40,7 +40,7 @@ echo 'Compiling src/**.java to ./build/*.class ..'
 
 failure=0;
 
-find . -name "*.java" -print0 | xargs -0 \
+find src -name "*.java" -print0 | xargs -0 \
  javac -source $JAVAVERSION -target $JAVAVERSION \
  -d build -classpath "$corejar"
 failure=$?
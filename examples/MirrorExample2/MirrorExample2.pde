@@ -59,6 +59,12 @@ void draw() {
     }
     updatePixels();
   */
+  
+  // -----------
+  // or the pixels[] array in one pass
+  /*
+    mirror.applyMirage(this);
+  */
                 
   noLoop();
   
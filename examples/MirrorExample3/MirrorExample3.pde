@@ -79,6 +79,19 @@ void draw() {
     image(output,0,0,width,height);
   
   */
+  
+  // -----------
+  // or the pixels[] array in one pass
+  /*
+  
+    output.beginDraw();
+    output.image(input,0,0,width,height);
+    output.endDraw();
+    
+    mirror.applyMirage(output);
+    image(output,0,0,width,height);
+  
+  */
 
   mirror.rotate(.01);
   
@@ -0,0 +1,169 @@
+package nl.kw.processing.mirror;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+* A cache for the data of a mirror that only depends on its
+* geometry and the image size, like masks and remap tables.
+* An animated mirror that returns to the same positions can
+* take them from here instead of building them again.<br><br>
+*
+* The geometry is rounded to steps of a few pixels and radians,
+* so positions that are nearly the same share their data, which
+* is then at most half a step off. Without steps, the cache rounds
+* to half a pixel and a thousandth of a radian, which also catches
+* the float drift of a mirror that is rotated back and forth. A
+* step of 0 rounds nothing.
+* When the data passes the budget in bytes, the least recently
+* used data is dropped first. One cache can be shared by
+* several mirrors.
+*/
+
+public class GeometryCache {
+
+  static final int MASK=0;
+  static final int INVMASK=1;
+  static final int REMAP=2;
+  static final int REMAP_UNMASKED=3;
+
+  private long budget;
+  private long bytes=0;
+  private float step;
+  private float anglestep;
+
+  private int hits=0;
+  private int misses=0;
+
+  // a quarter pixel at most, and about
+  // half a pixel at 1000 pixels from the center
+  private static final float STEP = 0.5f;
+  private static final float ANGLESTEP = 0.001f;
+
+  private LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(16,.75f,true);
+
+  public GeometryCache(long budget) {
+    this(budget,STEP,ANGLESTEP);
+  }
+  public GeometryCache(long budget, float step, float anglestep) {
+    if (budget<0 || step<0 || anglestep<0) {
+      throw new RuntimeException("GeometryCache: illegal budget or step");
+    }
+    this.budget = budget;
+    this.step = step;
+    this.anglestep = anglestep;
+  }
+
+  /*
+    getters and setters
+  */
+
+  public synchronized void setBudget(long budget) {
+      this.budget = budget;
+      this.evict();
+  }
+  public synchronized long getBudget() {
+      return this.budget;
+  }
+  public synchronized long getBytes() {
+      return this.bytes;
+  }
+  public synchronized int size() {
+      return this.entries.size();
+  }
+  public synchronized int getHits() {
+      return this.hits;
+  }
+  public synchronized int getMisses() {
+      return this.misses;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  /* ---------------
+    package methods
+  ----------- */
+
+  synchronized Object get(int kind, float x, float y, float alpha, int w, int h) {
+    Entry e = entries.get(key(kind,x,y,alpha,w,h));
+    if (e==null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return e.value;
+  }
+
+  synchronized void put(int kind, float x, float y, float alpha, int w, int h, Object value, long size) {
+    if (size>budget) return;
+    Entry old = entries.put(key(kind,x,y,alpha,w,h),new Entry(value,size));
+    if (old!=null) bytes -= old.size;
+    bytes += size;
+    evict();
+  }
+
+  /* ---------------
+    internal methods
+  ----------- */
+
+  private Key key(int kind, float x, float y, float alpha, int w, int h) {
+    if (step>0) {
+      x = Math.round(x/step);
+      y = Math.round(y/step);
+    }
+    if (anglestep>0) {
+      alpha = Math.round(alpha/anglestep);
+    }
+    return new Key(kind,x,y,alpha,w,h);
+  }
+
+  // the map is in access order, so
+  // the eldest is the least recently used
+  private void evict() {
+    Iterator<Map.Entry<Key,Entry>> it = entries.entrySet().iterator();
+    while (bytes>budget && it.hasNext()) {
+      bytes -= it.next().getValue().size;
+      it.remove();
+    }
+  }
+
+  private static class Entry {
+    final Object value;
+    final long size;
+    Entry(Object value, long size) {
+      this.value=value; this.size=size;
+    }
+  }
+
+  private static class Key {
+    final int kind, w, h;
+    final float x, y, alpha;
+
+    Key(int kind, float x, float y, float alpha, int w, int h) {
+      this.kind=kind; this.x=x; this.y=y; this.alpha=alpha; this.w=w; this.h=h;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key)o;
+      return kind==k.kind && w==k.w && h==k.h
+        && Float.compare(x,k.x)==0
+        && Float.compare(y,k.y)==0
+        && Float.compare(alpha,k.alpha)==0;
+    }
+
+    public int hashCode() {
+      int hash = kind;
+      hash = hash*31 + w;
+      hash = hash*31 + h;
+      hash = hash*31 + Float.floatToIntBits(x);
+      hash = hash*31 + Float.floatToIntBits(y);
+      hash = hash*31 + Float.floatToIntBits(alpha);
+      return hash;
+    }
+  }
+
+}
@@ -1,5 +1,15 @@
 package nl.kw.processing.mirror;
 import processing.core.*;
+import processing.awt.PGraphicsJava2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
 * A Processing utility to draw the mirror image (mirage) of a PGraphics
@@ -9,21 +19,32 @@ import processing.core.*;
 * the image.<br><br>
 *
 * The mirage can be drawn as a PImage, or pixel by pixel in a x,y
-* loop, or by iterating the pixels[] array of the source.<br><br>
+* loop, or by iterating the pixels[] array of the source, or in
+* one pass over the pixels[] array with applyMirage().<br><br>
 *
 * It is often useful to keep a copy
 * of the original image elsewhere, because drawing the mirage will 
 * obviously change the image. Also, it often useful to draw the mirage
 * on a separate PGraphics object (instead of the sketch canvas), so
 * you can crop the result to not contain parts of the mirrored image
-* that have no original image data.
+* that have no original image data.<br><br>
+*
+* The pixel work is done by a MirrorKernel, which can
+* also be used without Processing.
 */
 
 public class Mirror {
   
-  private float x;
-  private float y;
-  private float alpha;
+  public static final int MASK_SHAPE=0;
+  public static final int MASK_ANALYTIC=1;
+  public static final int MASK_SMOOTH=2;
+  
+  public static final int NEAREST=MirrorKernel.NEAREST;
+  public static final int BILINEAR=MirrorKernel.BILINEAR;
+  
+  private MirrorKernel kernel;
+  private MirrorStats stats = new MirrorStats();
+  private SurfacePool pool;
   
   private PShape shape;
   
@@ -40,12 +61,63 @@ public class Mirror {
   
   private int bgcolor;
   
-  private boolean tinted;
-  private int tint;
-  private float opacity;
-  
   private boolean transparent=true;
-  private boolean usemask=true;
+  private int maskmode=MASK_SHAPE;
+  private boolean direct=true;
+  
+  // the raster of the per pixel drawMirage(): the
+  // surface and the image it was taken from
+  private PGraphics pixelsource;
+  private Image pixelimage;
+  private int[] pixelraster;
+  
+  // incremental full mirage: the last result, the
+  // source it was drawn from and the dirty rectangles
+  private boolean incremental=false;
+  private boolean diffing=false;
+  private boolean redraw=true;
+  private int[] fullmirage;
+  private int[] lastsource;
+  private ArrayList<int[]> dirty = new ArrayList<int[]>();
+  private static final int DIRTY_MAX=16;
+  
+  // progressive drawing: the level while moving, the
+  // rows to refine per frame and the rows refined so far,
+  // the frame they were refined in, and the rows of
+  // fullmirage drawn at full detail, for which source
+  private int progressive=0;
+  private int refine=0;
+  private int refined=0;
+  private boolean moved=false;
+  private long levelframe=-1;
+  private int fullrows=0;
+  private PImage fullsource;
+  private long fullversion=-1;
+  
+  // memoised mirage: the source, source frame and
+  // version the mirage was drawn for, and if it is masked
+  private boolean memoize=false;
+  private long version=0;
+  private long frame=-1;
+  private PImage memosource;
+  private long memoframe;
+  private long memoversion=-1;
+  private boolean memomasked;
+  
+  // asynchronous mirage: the render in flight and the
+  // frame it started in, its source and target, and the
+  // last finished mirage, which is drawn
+  private Executor executor=ForkJoinPool.commonPool();
+  private int staleness=1;
+  private long asyncframe=0;
+  private CompletableFuture<Void> pending;
+  private long pendingframe;
+  private int asyncw=0;
+  private int asynch=0;
+  private int[] asyncsource;
+  private int[] asyncback;
+  private PImage asyncfront;
+  private long frontframe;
   
   public boolean debug=false;
   
@@ -53,20 +125,20 @@ public class Mirror {
   
   public Mirror(PApplet applet) {
     this(applet,(float) 0.0, (float) 0.0,(float) 0.0,0xffffffff);
-    this.tinted=false;
+    this.kernel.noTint();
   }
   public Mirror(PApplet applet, float x, float y, float alpha) {
     this(applet,x,y,alpha,0xffffffff);
-    this.tinted=false;
+    this.kernel.noTint();
   }
   public Mirror(PApplet applet, float x, float y, float alpha, int tint) {
     this.mirpix = new PVector(x,y);
     this.applet = applet;
+    this.kernel = new MirrorKernel();
     this.position(x,y,alpha);
     
-    this.tinted=true;
-    this.opacity= applet.alpha(tint);
-    this.tint = applet.color(applet.red(tint),applet.green(tint),applet.blue(tint));
+    this.kernel.setOpacity(applet.alpha(tint));
+    this.kernel.setTint(applet.color(applet.red(tint),applet.green(tint),applet.blue(tint)));
     
     applet.registerMethod("dispose", this);
     
@@ -77,64 +149,375 @@ public class Mirror {
   */
   
   public void setTint(int tint) {
-      this.tint = tint;
-      this.tinted=true;
+      this.kernel.setTint(tint);
   }
   public int getTint() {
-      return this.tint;
+      return this.kernel.getTint();
   }
   public void setOpacity(float opacity) {
-      this.opacity = opacity;
-      this.tinted=true;
+      this.kernel.setOpacity(opacity);
   }
   public float getOpacity() {
-      return this.opacity;
+      return this.kernel.getOpacity();
   }
   
   public void setBGColor(int bgcolor) {
       this.bgcolor = bgcolor;
+      this.redraw=true;
+      this.version++;
       if (applet.alpha(bgcolor)==0) this.transparent=true;
   }
   
   public int getBGColor() {
       return this.bgcolor;
   }
+  
+  /**
+  * Set how getMirage(PImage) masks the mirage. MASK_SHAPE
+  * draws the mirror shape in an offscreen mask; MASK_ANALYTIC
+  * clears the pixels outside the mirror row by row, without
+  * an offscreen mask, and MASK_SMOOTH does the same with
+  * an anti-aliased edge.
+  */
+  
+  public void setMaskMode(int mode) {
+      this.maskmode = mode;
+      this.version++;
+  }
+  
+  public int getMaskMode() {
+      return this.maskmode;
+  }
+  
+  boolean getUseMask() {
+      return this.kernel.getUseMask();
+  }
+  
+  /**
+  * Set how applyMirage() samples the source: NEAREST
+  * takes the nearest pixel, BILINEAR mixes the four
+  * nearest pixels, which is smoother at non-axis angles.
+  */
+  
+  public void setSampling(int sampling) {
+      this.kernel.setSampling(sampling);
+      this.redraw=true;
+      this.version++;
+  }
+  
+  public int getSampling() {
+      return this.kernel.getSampling();
+  }
+  
+  /**
+  * Grade the mirage of applyMirage() with lookup tables,
+  * and fade it with the distance to the mirror, in the
+  * same pass. null removes the color stage.
+  */
+  
+  public void setColor(MirrorColor color) {
+      this.kernel.setColor(color);
+  }
+  
+  public MirrorColor getColor() {
+      return this.kernel.getColor();
+  }
+  
+  /**
+  * Keep a table of the source pixel of every pixel
+  * for applyMirage(), so later calls with the same size
+  * and geometry only need to copy pixels. Moving or
+  * rotating the mirror drops the table. The table is
+  * only used with NEAREST sampling.
+  */
+  
+  public void setRemap(boolean remap) {
+      this.kernel.setRemap(remap);
+  }
+  
+  public boolean getRemap() {
+      return this.kernel.getRemap();
+  }
+  
+  /**
+  * Keep the masks and remap tables of recently used
+  * geometries in this cache, so an animation that returns
+  * to the same positions stops rebuilding them. The cache
+  * can be shared by several mirrors. Set null to not use one.
+  * Mirrors with a length or a pane are not cached.
+  */
+  
+  public void setGeometryCache(GeometryCache cache) {
+      this.kernel.setGeometryCache(cache);
+  }
+  
+  public GeometryCache getGeometryCache() {
+      return this.kernel.getGeometryCache();
+  }
+  
+  /**
+  * Borrow the offscreen surfaces and pixel buffers of this
+  * mirror from a pool, which can be shared by several
+  * mirrors. A surface returned by getMirage() goes back to
+  * the pool when the mirror needs one of another size. Set
+  * null to let the mirror create its own.
+  */
+  
+  public void setSurfacePool(SurfacePool pool) {
+      this.pool = pool;
+  }
+  
+  public SurfacePool getSurfacePool() {
+      return this.pool;
+  }
+  
+  /**
+  * Use this many threads in applyMirage(). The rows are
+  * split in bands that are drawn in parallel; small images
+  * are always drawn on the calling thread.
+  */
+  
+  public void setParallelism(int parallelism) {
+      this.kernel.setParallelism(parallelism);
+  }
+  
+  public int getParallelism() {
+      return this.kernel.getParallelism();
+  }
+  
+  /**
+  * Let the pixels[] methods work on the image behind a
+  * JAVA2D surface directly, instead of copying it to
+  * pixels[] and back. Other renderers, and surfaces that
+  * are not plain ARGB, always use pixels[].
+  */
+  
+  public void setDirect(boolean direct) {
+      this.direct = direct;
+  }
+  
+  public boolean getDirect() {
+      return this.direct;
+  }
+  
+  /**
+  * Let getFullMirage() only redraw the parts of the mirage
+  * whose source changed since the last call, as marked with
+  * markDirty() or found by setDiffing(). Moving or rotating
+  * the mirror, or a new size, redraws everything. The
+  * incremental mirage is drawn by the kernel, not by the
+  * renderer, so it uses the sampling of applyMirage().
+  */
+  
+  public void setIncremental(boolean incremental) {
+      this.incremental = incremental;
+      this.redraw = true;
+      this.version++;
+  }
+  
+  public boolean getIncremental() {
+      return this.incremental;
+  }
+  
+  /**
+  * With incremental drawing, compare the source with the
+  * last one to find what changed, instead of relying on
+  * markDirty(). This keeps a copy of the source.
+  */
+  
+  public void setDiffing(boolean diffing) {
+      this.diffing = diffing;
+      this.release(this.lastsource);
+      this.lastsource = null;
+  }
+  
+  public boolean getDiffing() {
+      return this.diffing;
+  }
+  
+  /**
+  * Draw the mirage at 1/2^level of the resolution while
+  * the mirror moves, and refine it once the mirror stands
+  * still for a frame. This applies to applyMirage(), and to
+  * getFullMirage() and getMirage(), which draw with the
+  * kernel until the mirage is refined. Level 0 turns
+  * progressive drawing off.
+  */
+  
+  public void setProgressive(int level) {
+      this.kernel.setLevel(level);
+      this.progressive = level;
+      this.refined = 0;
+      this.redraw=true;
+      this.version++;
+  }
+  
+  public int getProgressive() {
+      return this.progressive;
+  }
+  
+  /**
+  * Refine this many rows per frame once the mirror stands
+  * still, to spread the refinement over several frames.
+  * 0 refines the whole mirage in one frame.
+  */
+  
+  public void setRefineRows(int rows) {
+      this.refine = Math.max(0,rows);
+  }
+  
+  public int getRefineRows() {
+      return this.refine;
+  }
+  
+  /**
+  * Let getMirage(), getFullMirage() and drawMirage() return
+  * the last mirage again, without any work, if neither the
+  * source nor the mirror changed since. The source counts
+  * as changed when it is another image, or when setFrame()
+  * was given another frame. Without a frame, it counts as
+  * changed every frameCount, as it may have been drawn on.
+  */
+  
+  public void setMemoize(boolean memoize) {
+      this.memoize = memoize;
+      this.memoversion = -1;
+  }
+  
+  public boolean getMemoize() {
+      return this.memoize;
+  }
+  
+  /**
+  * Tell a memoising mirror which frame its sources
+  * show, like frameCount or an id that only changes
+  * when the sketch redraws. -1 uses frameCount.
+  */
+  
+  public void setFrame(long frame) {
+      this.frame = frame;
+  }
+  
+  public long getFrame() {
+      return this.frame;
+  }
+  
+  /**
+  * A counter that goes up whenever the geometry or
+  * the settings that change the mirage do. Settings
+  * changed on the kernel directly are not counted.
+  */
+  
+  public long getVersion() {
+      return this.version;
+  }
+  
+  /**
+  * Render the mirages of drawMirageAsync() on this
+  * executor. The default is the common ForkJoinPool.
+  */
+  
+  public void setExecutor(Executor executor) {
+      this.executor = executor;
+  }
+  
+  public Executor getExecutor() {
+      return this.executor;
+  }
+  
+  /**
+  * Let drawMirageAsync() draw a mirage of at most this
+  * many frames ago, and wait for one if there is none.
+  * 0 always waits for the mirage of this frame.
+  */
+  
+  public void setStaleness(int frames) {
+      this.staleness = Math.max(0,frames);
+  }
+  
+  public int getStaleness() {
+      return this.staleness;
+  }
+  
+  /**
+  * Mark a rectangle of the source as changed, so the
+  * next incremental getFullMirage() redraws its mirage.
+  */
+  
+  public void markDirty(int x, int y, int w, int h) {
+    if (w<=0 || h<=0) return;
+    memoversion = -1;
+    dirty.add(new int[] { x, y, w, h });
+    if (dirty.size()>DIRTY_MAX) {
+      
+      // too many, keep their bounds
+      int[] r = dirty.get(0);
+      int x0=r[0], y0=r[1], x1=r[0]+r[2], y1=r[1]+r[3];
+      for (int[] d : dirty) {
+        x0 = Math.min(x0,d[0]);
+        y0 = Math.min(y0,d[1]);
+        x1 = Math.max(x1,d[0]+d[2]);
+        y1 = Math.max(y1,d[1]+d[3]);
+      }
+      dirty.clear();
+      dirty.add(new int[] { x0, y0, x1-x0, y1-y0 });
+    }
+  }
+  
+  /**
+  * Get an immutable snapshot of the geometry and colors
+  * of this mirror, to render on another thread
+  */
+  
+  public MirrorGeometry getGeometry() {
+      return new MirrorGeometry(this.kernel,transparent?0:bgcolor);
+  }
+  
+  /**
+  * Get the counters of the work this mirror does
+  */
+  
+  public MirrorStats getStats() {
+      return this.stats;
+  }
+  
+  /**
+  * Get the kernel that does the pixel work of this mirror
+  */
+  
+  public MirrorKernel getKernel() {
+      return this.kernel;
+  }
     
   public float getX() {
-    return this.x;
+    return this.kernel.getX();
   }
   public void setX(float x) {
-    if (x != this.x) {
-      this.x = x;
+    if (x != this.kernel.getX()) {
+      this.kernel.setX(x);
       this.resetShape();
     }
   }
   public float getY() {
-    return this.y;
+    return this.kernel.getY();
   }
   public void setY(float y) {
-    if (y != this.y) {
-      this.y = y;
+    if (y != this.kernel.getY()) {
+      this.kernel.setY(y);
       this.resetShape();
     }
   }
   public float getAlpha() {
-    return this.alpha;
+    return this.kernel.getAlpha();
   }
   public void incAlpha(float delta) {
-    setAlpha(alpha+delta);
+    setAlpha(getAlpha()+delta);
   }
   public void setAlpha(float alpha) {
-    if (alpha != this.alpha) {
-      
-      
-      // normalize between PI and -PI
-      // alpha = alpha - TWO_PI * floor((alpha + PI) / TWO_PI);
-      alpha = alpha % PConstants.TWO_PI;
-      if (alpha>PConstants.PI) alpha-=PConstants.TWO_PI;
-      if (alpha<-PConstants.PI) alpha+=PConstants.TWO_PI;
+    if (alpha != this.kernel.getAlpha()) {
       
-      this.alpha = alpha;
+      // the kernel normalizes between PI and -PI
+      this.kernel.setAlpha(alpha);
       //println(round(degrees(this.alpha)));
       this.resetShape();
       
@@ -152,11 +535,39 @@ public class Mirror {
     this.setAlpha(alpha);
   }
   
+  /**
+  * Make the mirror a segment of this length, centered
+  * on x,y, that only reflects what is in front of it.
+  * A length of 0 makes the mirror infinite again.
+  */
+  
+  public void setLength(float length) {
+    if (length != this.kernel.getLength()) {
+      this.kernel.setLength(length);
+      this.resetShape();
+    }
+  }
+  public float getLength() {
+    return this.kernel.getLength();
+  }
+  
+  /**
+  * Only draw the mirage inside a convex polygon pane, with
+  * corners xs[i],ys[i] relative to the center. The work is
+  * limited to the bounding box of the pane. null removes
+  * the pane.
+  */
+  
+  public void setPane(float[] xs, float[] ys) {
+    this.kernel.setPane(xs,ys);
+    this.resetShape();
+  }
+  
   public void rotate(float delta) {
-    PVector c = new PVector(x,y);
+    PVector c = new PVector(getX(),getY());
     PVector nc = PVector.fromAngle(c.heading()+delta);
     nc.setMag(c.mag());
-    position(nc.x,nc.y,alpha+delta);
+    position(nc.x,nc.y,getAlpha()+delta);
   }
 
   /* ---------------
@@ -169,10 +580,23 @@ public class Mirror {
   */
 
   public PImage getMirage(PImage source) {
+    boolean masked = kernel.getUseMask() || kernel.isFinite();
+    if (masked && isMemoized(source,true)) {
+      return mirage;
+    }
     PImage mirage = getFullMirage(source);
-    if (usemask) {
-      PImage mask = getMask(source,true);
-      mirage.mask(mask);
+    if (masked) {
+      long t = stats.begin();
+      if (maskmode==MASK_SHAPE) {
+        PImage mask = getMask(source,true);
+        mirage.mask(mask);
+      } else {
+        mirage.loadPixels();
+        kernel.applyMask(mirage.pixels,mirage.width,mirage.height,maskmode==MASK_SMOOTH);
+        mirage.updatePixels();
+      }
+      stats.end(MirrorStats.MASK,t,mirage.width,mirage.height);
+      memoized(source,true);
     }
     return mirage;
   }
@@ -181,6 +605,7 @@ public class Mirror {
     PImage mirage = getFullMirage(source);
     PImage mask = shape2mask(source.width,source.height,shape);
     mirage.mask(mask);
+    memoversion = -1;
     return mirage;
   }
   
@@ -189,12 +614,33 @@ public class Mirror {
   */
 
   public PImage getFullMirage(PImage source) {
+      if (isMemoized(source,false)) {
+        return mirage;
+      }
+      long t = stats.begin();
+      PImage mirage = drawFullMirage(source);
+      stats.end(MirrorStats.FULL_MIRAGE,t,source.width,source.height);
+      memoized(source,false);
+      return mirage;
+  }
+  
+  private PImage drawFullMirage(PImage source) {
       
       
       if (source!=null) {
         
         if (mirage==null || mirage.width!=source.width || mirage.height!=source.height) {
-          mirage = applet.createGraphics(source.width,source.height);
+          release(mirage);
+          mirage = createGraphics(source.width,source.height);
+        }
+        
+        if (incremental) {
+          return getIncrementalMirage(source);
+        }
+        
+        boolean sharp = nextLevel(source.height);
+        if ((kernel.isAxisAligned() || !sharp) && source.pixelDensity==1 && mirage.pixelDensity==1) {
+          return getKernelMirage(source,sharp);
         }
         
         mirage.beginDraw();
@@ -206,6 +652,9 @@ public class Mirror {
         
         int cx = Math.round(source.width/2);
         int cy = Math.round(source.height/2);
+        float x = kernel.getX();
+        float y = kernel.getY();
+        float alpha = kernel.getAlpha();
         
         mirage.pushMatrix();
         
@@ -247,6 +696,179 @@ public class Mirror {
       return mirage;
   }
   
+  // redraw the dirty parts of the last full mirage
+  // and copy it, because getMirage() masks the copy
+  private PImage getIncrementalMirage(PImage source) {
+    int w = source.width;
+    int h = source.height;
+    source.loadPixels();
+    
+    if (fullmirage==null || fullmirage.length!=w*h) {
+      release(fullmirage);
+      fullmirage = createBuffer(w*h);
+      redraw = true;
+    }
+    if (diffing) {
+      if (lastsource==null || lastsource.length!=w*h) {
+        release(lastsource);
+        lastsource = createBuffer(w*h);
+        redraw = true;
+      } else {
+        markChanged(source.pixels,lastsource,w,h);
+      }
+      System.arraycopy(source.pixels,0,lastsource,0,w*h);
+    }
+    
+    int bg = transparent?0:bgcolor;
+    nextLevel(h);
+    int row = kernel.getLevelRow();
+    if (redraw) {
+      kernel.getFullMirage(source.pixels,fullmirage,w,h,0,0,w,h,bg);
+    } else {
+      for (int[] d : dirty) {
+        int[] r = kernel.getMirageBounds(d[0],d[1],d[2],d[3],w,h);
+        if (r!=null) {
+          kernel.getFullMirage(source.pixels,fullmirage,w,h,r[0],r[1],r[2],r[3],bg);
+        }
+      }
+      
+      // the rows refined since the last call
+      if (progressive>0 && row>fullrows) {
+        kernel.getFullMirage(source.pixels,fullmirage,w,h,0,fullrows,w,row-fullrows,bg);
+      }
+    }
+    dirty.clear();
+    redraw = false;
+    fullrows = row;
+    
+    mirage.loadPixels();
+    System.arraycopy(fullmirage,0,mirage.pixels,0,w*h);
+    mirage.updatePixels();
+    return mirage;
+  }
+  
+  // a mirror at 0, PI or +-HALF_PI flips rows or
+  // columns, which the kernel does with block copies.
+  // a progressive mirage is drawn by the kernel as well
+  private PImage getKernelMirage(PImage source, boolean sharp) {
+    int w = source.width;
+    int h = source.height;
+    int[] src = (direct && source instanceof PGraphics)?getRaster((PGraphics)source):null;
+    if (src==null) {
+      source.loadPixels();
+      src = source.pixels;
+    }
+    int[] dst = direct?getRaster(mirage):null;
+    if (!sharp) {
+      
+      // while refining, keep the rows refined in earlier
+      // frames and only draw the new ones and the coarse rest.
+      // getMirage() masks the mirage, so they are kept aside
+      int row = 0;
+      if (fullmirage==null || fullmirage.length!=w*h) {
+        release(fullmirage);
+        fullmirage = createBuffer(w*h);
+      } else if (source==fullsource && version==fullversion && fullrows<=kernel.getLevelRow()) {
+        row = fullrows;
+      }
+      kernel.getFullMirage(src,fullmirage,w,h,0,row,w,h-row,transparent?0:bgcolor);
+      fullrows = kernel.getLevelRow();
+      fullsource = source;
+      fullversion = version;
+      if (dst!=null) {
+        System.arraycopy(fullmirage,0,dst,0,w*h);
+        rasterChanged(mirage,dst);
+      } else {
+        mirage.loadPixels();
+        System.arraycopy(fullmirage,0,mirage.pixels,0,w*h);
+        mirage.updatePixels();
+      }
+      return mirage;
+    }
+    if (dst!=null) {
+      kernel.getFullMirage(src,dst,w,h,0,0,w,h,transparent?0:bgcolor);
+      rasterChanged(mirage,dst);
+    } else {
+      mirage.loadPixels();
+      kernel.getFullMirage(src,mirage.pixels,w,h,0,0,w,h,transparent?0:bgcolor);
+      mirage.updatePixels();
+    }
+    return mirage;
+  }
+  
+  // true if the mirage still holds what would be drawn
+  // now: the same source at the same frame, the same
+  // version and mask, and no refinement going on
+  private boolean isMemoized(PImage source, boolean masked) {
+    if (!memoize || mirage==null || source==null) return false;
+    if (source!=memosource || masked!=memomasked || version!=memoversion) return false;
+    if (mirage.width!=source.width || mirage.height!=source.height) return false;
+    if (progressive>0 && refined<source.height) return false;
+    long frame = getSourceFrame();
+    if (frame<0 || frame!=memoframe) return false;
+    stats.memoHit(source.width,source.height);
+    return true;
+  }
+  
+  private void memoized(PImage source, boolean masked) {
+    memosource = memoize?source:null;
+    memoframe = getSourceFrame();
+    memoversion = version;
+    memomasked = masked;
+  }
+  
+  // the frame the source shows: the one of setFrame(), or
+  // the frameCount of the sketch. isModified() is no use, as
+  // drawing on a PGraphics does not set it and drawing a
+  // PImage clears it. -1 if there is neither
+  private long getSourceFrame() {
+    if (frame>=0) return frame;
+    return (applet!=null)?applet.frameCount:-1;
+  }
+  
+  // the level of detail of this frame: coarse after the
+  // mirror moved, then refine rows until all are sharp.
+  // it advances once per frameCount, however often the
+  // mirage is drawn in a frame;
+  // returns true if the whole frame is at full detail
+  private boolean nextLevel(int h) {
+    if (progressive==0) return true;
+    long f = (applet!=null)?applet.frameCount:-1;
+    if (f<0 || f!=levelframe) {
+      levelframe = f;
+      if (moved) {
+        moved = false;
+        refined = 0;
+      } else if (refined<h) {
+        refined = (refine>0)?Math.min(h,refined+refine):h;
+      }
+      kernel.setLevel(progressive,refined);
+    }
+    return refined>=h;
+  }
+  
+  // mark the bounds of the pixels that differ
+  private void markChanged(int[] pixels, int[] last, int w, int h) {
+    int x0=w, y0=h, x1=-1, y1=-1;
+    for (int py=0; py<h; py++) {
+      int i = py*w;
+      int first=-1, lastx=-1;
+      for (int px=0; px<w; px++, i++) {
+        if (pixels[i]!=last[i]) {
+          if (first<0) first = px;
+          lastx = px;
+        }
+      }
+      if (first>=0) {
+        x0 = Math.min(x0,first);
+        x1 = Math.max(x1,lastx);
+        if (y1<0) y0 = py;
+        y1 = py;
+      }
+    }
+    if (x1>=0) markDirty(x0,y0,x1-x0+1,y1-y0+1);
+  }
+  
   /**
   * Draw the mirage on this.applet
   */
@@ -277,14 +899,133 @@ public class Mirror {
 
   public void drawMirage(PGraphics source, boolean loaded) {
       if (!loaded) source.beginDraw();
-      if (tinted) source.tint(tint,opacity);
+      if (kernel.isTinted()) source.tint(kernel.getTint(),kernel.getOpacity());
       source.image(getMirage(source),0,0);
-      if (tinted) source.noTint();
+      if (kernel.isTinted()) source.noTint();
       if (!loaded) source.endDraw();
   }
   
   
   
+  /**
+  * Draw the mirage on this.applet without waiting
+  * for it, see drawMirageAsync(PGraphics,boolean)
+  */
+  
+  public CompletableFuture<Void> drawMirageAsync() {
+     return drawMirageAsync(applet.g,true);
+  }
+  
+  /**
+  * Draw the mirage on a PGraphics object without
+  * waiting for it
+  */
+  
+  public CompletableFuture<Void> drawMirageAsync(PGraphics source) {
+     return drawMirageAsync(source,false);
+  }
+  
+  /**
+  * Draw the last finished mirage on a PGraphics object
+  * inside beginDraw/endDraw, and render the mirage of this
+  * frame on the executor, from a copy of the source. Every
+  * call is a frame; a mirage is drawn when it is at most
+  * getStaleness() frames old, so with the default of 1,
+  * the sketch shows the mirage of the last frame while the
+  * next one renders. The mirage is drawn by the kernel, as
+  * getMirage() would, on a snapshot of the mirror. Returns
+  * the render in flight, which is done when a newer
+  * mirage can be drawn.
+  */
+  
+  public CompletableFuture<Void> drawMirageAsync(PGraphics source, boolean loaded) {
+      if (!loaded) source.beginDraw();
+      long frame = asyncframe++;
+      int w = source.width;
+      int h = source.height;
+      if (w!=asyncw || h!=asynch) {
+        dropAsync();
+        asyncfront = null;
+      }
+      if (pending!=null && pending.isDone()) {
+        finishAsync();
+      }
+      while (asyncfront==null || frame-frontframe>staleness) {
+        if (pending==null) startAsync(source,frame);
+        finishAsync();
+      }
+      
+      // the copy is taken before the mirage is drawn on it
+      if (pending==null && frontframe!=frame) {
+        startAsync(source,frame);
+      }
+      if (kernel.isTinted()) source.tint(kernel.getTint(),kernel.getOpacity());
+      source.image(asyncfront,0,0);
+      if (kernel.isTinted()) source.noTint();
+      if (!loaded) source.endDraw();
+      return (pending!=null)?pending:CompletableFuture.completedFuture(null);
+  }
+  
+  // copy the source, so the sketch can draw on it
+  // while the mirage of the copy renders
+  private void startAsync(PGraphics source, long frame) {
+    int w = source.width;
+    int h = source.height;
+    int[] src = direct?getRaster(source):null;
+    if (src==null) {
+      source.loadPixels();
+      src = source.pixels;
+    }
+    if (asyncsource==null || asyncsource.length!=w*h) {
+      release(asyncsource);
+      asyncsource = createBuffer(w*h);
+    }
+    if (asyncback==null || asyncback.length!=w*h) {
+      release(asyncback);
+      asyncback = createBuffer(w*h);
+    }
+    System.arraycopy(src,0,asyncsource,0,w*h);
+    final MirrorGeometry geometry = getGeometry();
+    final int[] from = asyncsource;
+    final int[] to = asyncback;
+    pending = CompletableFuture.runAsync(() -> geometry.getMirage(from,to,w,h),executor);
+    pendingframe = frame;
+    asyncw = w;
+    asynch = h;
+  }
+  
+  // wait for the render in flight, and swap its
+  // target with the pixels of the mirage drawn
+  private void finishAsync() {
+    if (pending==null) return;
+    try {
+      pending.join();
+    } finally {
+      pending = null;
+    }
+    if (asyncfront==null) {
+      asyncfront = new PImage(asyncw,asynch,PConstants.ARGB);
+    }
+    int[] front = asyncfront.pixels;
+    asyncfront.pixels = asyncback;
+    asyncfront.updatePixels();
+    asyncback = front;
+    frontframe = pendingframe;
+  }
+  
+  // wait for the render in flight and drop it,
+  // so its buffers can be used again
+  private void dropAsync() {
+    if (pending==null) return;
+    try {
+      pending.join();
+    } catch (RuntimeException e) {
+      // a render that is not drawn
+    } finally {
+      pending = null;
+    }
+  }
+
   /* ---------------
     public mirpix vector methods
   ----------- */
@@ -303,7 +1044,9 @@ public class Mirror {
 
   public PVector getMirage(float vx, float vy) {
     // https://stackoverflow.com/questions/3306838/algorithm-for-reflecting-a-point-across-a-line
-    float m = (float)Math.tan(alpha);
+    float x = kernel.getX();
+    float y = kernel.getY();
+    float m = (float)Math.tan(kernel.getAlpha());
     float c = y-m*x;
     float d = (vx + (vy-c)*m)/(1+(float)Math.pow(m,2));
     this.mirpix.x = 2*d-vx;
@@ -311,6 +1054,24 @@ public class Mirror {
     return this.mirpix;
   }
   
+  /**
+  * Reflect n points xs[i],ys[i] into outX[i],outY[i] in one
+  * loop. The out arrays may be xs and ys.
+  */
+
+  public void getMirage(float[] xs, float[] ys, float[] outX, float[] outY, int n) {
+    kernel.getMirage(xs,ys,outX,outY,n);
+  }
+  
+  /**
+  * Set bit i of inside (bit i%64 of word i/64) if point
+  * xs[i],ys[i] is on the mirror side of the line
+  */
+
+  public void isInside(float[] xs, float[] ys, long[] inside, int n) {
+    kernel.isInside(xs,ys,inside,n);
+  }
+  
   /**
   * Draw the mirage pixel of a vector on this applet
   */
@@ -356,7 +1117,7 @@ public class Mirror {
   */
   public void drawMirage(PGraphics source, float vx, float vy) {
     
-    if (!usemask || isInside(vx,vy)) {
+    if ((!kernel.getUseMask() || isInside(vx,vy)) && kernel.isInPane(vx,vy)) {
       
       PVector m = getMirage(vx,vy);
 
@@ -366,11 +1127,11 @@ public class Mirror {
       int srcy = Math.round(source.height/2+m.y);
       
       int srcval = source.get(srcx,srcy);
-      if (tinted) {
+      if (kernel.isTinted()) {
         int dstval = source.get(dstx,dsty);
-        source.set(dstx,dsty,tintColor(srcval,dstval));
+        source.set(dstx,dsty,kernel.tintColor(srcval,dstval));
       } else {
-        source.set(dstx,dsty,tintColor(srcval));
+        source.set(dstx,dsty,kernel.tintColor(srcval));
       }
       //println("mirpix inside",srcval);
 
@@ -439,7 +1200,7 @@ public class Mirror {
     float vy = py-source.height/2;
     float vx = px-source.width/2;
     
-    if (!usemask || isInside(vx,vy)) {
+    if ((!kernel.getUseMask() || isInside(vx,vy)) && kernel.isInPane(vx,vy)) {
       
       PVector m = getMirage(vx,vy);
 
@@ -448,10 +1209,18 @@ public class Mirror {
       int srcp = srcy*source.width+srcx;
       //color srcval = source.get(srcx,srcy);
       
-      if (srcp < source.pixels.length) {
+      int[] raster = (!loaded && direct)?getPixelRaster(source):null;
+      if (raster!=null) {
+        if (srcp >= 0 && srcp < raster.length) {
+          int srcval = raster[srcp];
+          raster[index] = kernel.isTinted()?kernel.tintColor(srcval,raster[index]):srcval;
+          if (source.pixels!=null) source.pixels[index] = raster[index];
+          source.setModified();
+        }
+      } else if (srcp >= 0 && srcp < source.width*source.height) {
         if (!loaded) source.loadPixels();
         int srcval = source.pixels[srcp];
-        source.pixels[index] = tintColor(srcval);
+        source.pixels[index] = kernel.isTinted()?kernel.tintColor(srcval,source.pixels[index]):srcval;
         if (!loaded) source.updatePixels();
       }
       
@@ -459,6 +1228,61 @@ public class Mirror {
     
   }
   
+  /* ---------------
+    public mirpix kernel methods
+  ----------- */
+
+  /**
+  * Draw the mirage on the pixels[] of this applet in one pass
+  */
+
+  public void applyMirage() {
+    applyMirage(applet.g);
+  }
+
+  /**
+  * Draw the mirage on the pixels[] of any applet in one pass
+  */
+
+  public void applyMirage(PApplet applet) {
+    applyMirage(applet.g);
+  }
+
+  /**
+  * Draw the mirage on the pixels[] of a PGraphics object in one pass.
+  * This gives the same result as calling drawMirage(source,index,true)
+  * for every index, but computes the reflection once per call.
+  */
+
+  public void applyMirage(PGraphics source) {
+    int[] raster = direct?getRaster(source):null;
+    if (raster!=null) {
+      applyMirage(raster,source.width,source.height);
+      rasterChanged(source,raster);
+    } else {
+      source.loadPixels();
+      applyMirage(source.pixels,source.width,source.height);
+      source.updatePixels();
+    }
+  }
+
+  /**
+  * Draw the mirage on a pixels[] array of w x h pixels in one pass
+  */
+
+  public void applyMirage(int[] pixels, int w, int h) {
+    long t = stats.begin();
+    nextLevel(h);
+    if (pool!=null) {
+      int[] scratch = pool.takeBuffer(pixels.length);
+      kernel.applyMirage(pixels,w,h,scratch);
+      pool.putBuffer(scratch);
+    } else {
+      kernel.applyMirage(pixels,w,h);
+    }
+    stats.end(MirrorStats.KERNEL,t,w,h);
+  }
+  
   /* ---------------
     internal mirage methods
   ----------- */
@@ -524,8 +1348,13 @@ public class Mirror {
     this.boundsh=h;
     this.mask=mask;
     this.invmask=invmask;
+    this.release(this.maskgfx);
+    this.release(this.invmaskgfx);
     this.maskgfx=null;
     this.invmaskgfx=null;
+    this.redraw=true;
+    this.moved=true;
+    this.version++;
   }
   
   
@@ -535,8 +1364,10 @@ public class Mirror {
   
   private PImage shape2mask(int boundsw, int boundsh, PShape shape) {
       if (maskgfx==null || maskgfx.width != boundsw || maskgfx.height!= boundsh) {
-        maskgfx = applet.createGraphics(boundsw,boundsh);
+        if (maskgfx!=mask) release(maskgfx);
+        maskgfx = createGraphics(boundsw,boundsh);
       }
+      stats.rebuilt(boundsw,boundsh);
       maskgfx.beginDraw();
       maskgfx.clear();
       maskgfx.shape(shape,0,0);
@@ -589,10 +1420,18 @@ public class Mirror {
         this.boundsh = h;
       }
       if (this.mask!=null && w==this.boundsw && h==this.boundsh) {
+        stats.maskHit(w,h);
         return this.mask;
       } else {
-        PShape shape = getShape(w,h);
-        PImage mask = shape2mask(w,h,shape);
+        PImage mask = getCached(GeometryCache.MASK,w,h);
+        if (mask==null) {
+          stats.maskMiss(w,h);
+          PShape shape = getShape(w,h);
+          mask = shape2mask(w,h,shape);
+          mask = putCached(GeometryCache.MASK,w,h,mask);
+        } else {
+          stats.maskHit(w,h);
+        }
         if (this.mask==null || reset) this.setMask(mask);
         return mask;
       }
@@ -604,19 +1443,69 @@ public class Mirror {
         this.boundsh = h;
       }
       if (this.invmask!=null && w==this.boundsw && h==this.boundsh) {
+        stats.maskHit(w,h);
         return this.invmask;
       } else {
-          PImage mask = getMask(w,h,reset);
-          PImage invmask = invertMask(mask);
+          PImage invmask = getCached(GeometryCache.INVMASK,w,h);
+          if (invmask==null) {
+            stats.maskMiss(w,h);
+            PImage mask = getMask(w,h,reset);
+            invmask = invertMask(mask);
+            invmask = putCached(GeometryCache.INVMASK,w,h,invmask);
+          }
+          else stats.maskHit(w,h);
           if (this.invmask==null || reset) this.setInvMask(invmask);
           return invmask;
       }
   }
   
+  // the masks are drawn on a reused PGraphics,
+  // so the cache keeps a copy
+  
+  private PImage getCached(int kind, int w, int h) {
+    GeometryCache cache = kernel.getGeometryCache();
+    if (cache==null || kernel.isFinite()) return null;
+    return (PImage)cache.get(kind,getX(),getY(),getAlpha(),w,h);
+  }
+  
+  private PImage putCached(int kind, int w, int h, PImage mask) {
+    GeometryCache cache = kernel.getGeometryCache();
+    if (cache==null || kernel.isFinite()) return mask;
+    PImage copy = mask.get();
+    cache.put(kind,getX(),getY(),getAlpha(),w,h,copy,4L*w*h);
+    return copy;
+  }
+  
+  // surfaces and buffers come from the pool if there is
+  // one, and go back to it when they are not needed
+  
+  private PGraphics createGraphics(int w, int h) {
+    if (pool!=null) {
+      PGraphics surface = pool.takeSurface(w,h);
+      if (surface!=null) return surface;
+    }
+    stats.allocated(w,h);
+    return SurfacePool.createSurface(applet,w,h);
+  }
+  
+  private void release(PGraphics surface) {
+    if (pool!=null && surface!=null) pool.putSurface(surface);
+  }
+  
+  private int[] createBuffer(int length) {
+    return (pool!=null)?pool.takeBuffer(length):new int[length];
+  }
+  
+  private void release(int[] buffer) {
+    if (pool!=null && buffer!=null) pool.putBuffer(buffer);
+  }
+  
   private PImage invertMask(PImage mask) {
     if (invmaskgfx==null || invmaskgfx.width!=mask.width || invmaskgfx.height!=mask.height) {
-      invmaskgfx = applet.createGraphics(mask.width,mask.height);
+      if (invmaskgfx!=invmask) release(invmaskgfx);
+      invmaskgfx = createGraphics(mask.width,mask.height);
     }
+    stats.rebuilt(mask.width,mask.height);
     invmaskgfx.beginDraw();
     invmaskgfx.fill(0,0,255); // blue for mask
     invmaskgfx.rect(0,0,mask.width,mask.height);
@@ -635,8 +1524,18 @@ public class Mirror {
       //rprintln(this,"createShapeFromBounds",w,h);
       PShape shape = applet.createShape();
       
+      if (kernel.isFinite()) {
+        return createFiniteShape(shape,w,h);
+      }
+      if (kernel.isAxisAligned()) {
+        return createAxisShape(shape,w,h);
+      }
+      
       
       // create shape
+      float x = kernel.getX();
+      float y = kernel.getY();
+      float alpha = kernel.getAlpha();
       int cx = Math.round(x + w/2); 
       int cy = Math.round(y + h/2); 
       
@@ -767,6 +1666,92 @@ public class Mirror {
   }
 
 
+  // raster methods
+  // a JAVA2D surface draws on a BufferedImage. if
+  // that is plain ARGB, its int[] can be used as is
+  
+  static int[] getRaster(PGraphics source) {
+    if (!(source instanceof PGraphicsJava2D) || source.pixelDensity!=1) return null;
+    Image image = ((PGraphicsJava2D)source).getImage();
+    if (!(image instanceof BufferedImage)) return null;
+    BufferedImage bi = (BufferedImage)image;
+    if (bi.getType()!=BufferedImage.TYPE_INT_ARGB) return null;
+    WritableRaster raster = bi.getRaster();
+    if (raster.getWidth()!=source.width || raster.getHeight()!=source.height) return null;
+    if (raster.getSampleModelTranslateX()!=0 || raster.getSampleModelTranslateY()!=0) return null;
+    if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) return null;
+    if (((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride()!=source.width) return null;
+    if (!(raster.getDataBuffer() instanceof DataBufferInt)) return null;
+    DataBufferInt buffer = (DataBufferInt)raster.getDataBuffer();
+    if (buffer.getNumBanks()!=1 || buffer.getOffset()!=0) return null;
+    return buffer.getData();
+  }
+  
+  // the per pixel drawMirage() is called for every pixel,
+  // so keep the raster until the surface gets another image
+  
+  private int[] getPixelRaster(PGraphics source) {
+    Image image = (source instanceof PGraphicsJava2D)?((PGraphicsJava2D)source).getImage():null;
+    if (source!=pixelsource || image!=pixelimage) {
+      pixelsource = source;
+      pixelimage = image;
+      pixelraster = getRaster(source);
+    }
+    return pixelraster;
+  }
+  
+  // an offscreen surface is drawn from its 
+  // pixels[], so those have to follow the raster
+  
+  static void rasterChanged(PGraphics source, int[] raster) {
+    int length = source.width*source.height;
+    if (source.pixels!=null && source.pixels.length>=length) {
+      System.arraycopy(raster,0,source.pixels,0,length);
+    }
+    source.setModified();
+  }
+  
+  // a finite mirror is the part of the bounds
+  // in its pane and in front of its segment
+  
+  private PShape createFiniteShape(PShape shape, int w, int h) {
+      double[] region = kernel.getRegion(0,0,w,h,w,h);
+      shape.beginShape();
+      shape.fill(0, 0, 255); // blue for mask
+      shape.noStroke();
+      if (region!=null) {
+        for (int i=0; i<region.length; i+=2) {
+          shape.vertex((float)region[i],(float)region[i+1]);
+        }
+      }
+      shape.endShape(PConstants.CLOSE);
+      return shape;
+  }
+  
+  // at 0, PI and +-HALF_PI the mirror is half of
+  // the bounds, or all or nothing if the line is outside
+  
+  private PShape createAxisShape(PShape shape, int w, int h) {
+      float alpha = kernel.getAlpha();
+      int cx = Math.min(Math.max(Math.round(kernel.getX() + w/2),0),w);
+      int cy = Math.min(Math.max(Math.round(kernel.getY() + h/2),0),h);
+      int x0=0, y0=0, x1=w, y1=h;
+      if (alpha==0) y0 = cy; // bottom
+      else if (alpha==PConstants.HALF_PI) x1 = cx; // left
+      else if (alpha==-PConstants.HALF_PI) x0 = cx; // right
+      else y1 = cy; // top
+      
+      shape.beginShape();
+      shape.fill(0, 0, 255); // blue for mask
+      shape.noStroke();
+      shape.vertex(x0,y0);
+      shape.vertex(x1,y0);
+      shape.vertex(x1,y1);
+      shape.vertex(x0,y1);
+      shape.endShape(PConstants.CLOSE);
+      return shape;
+  }
+  
   /* ----------------
     mirpix methods
   ------------- */
@@ -776,23 +1761,15 @@ public class Mirror {
   }
   
   private boolean isInside(float vx, float vy) {
+    float x = kernel.getX();
+    float y = kernel.getY();
+    float alpha = kernel.getAlpha();
     if (Math.abs(alpha)<PConstants.HALF_PI) return vy >= y + Math.tan(alpha)*(vx-x);
     if (alpha==-PConstants.HALF_PI) return vx >= x;
     if (alpha==PConstants.HALF_PI) return vx <= x;
     return vy <= y + Math.tan(alpha)*(vx-x);
   }
   
-  private int tintColor(int srcval) {
-    // TBD: apply tint() and opacity() to srcval
-    return srcval;
-  }
-  
-  private int tintColor(int srcval, int dstval) {
-    // TBD: apply tint() and opacity() to srcval
-    return srcval;
-  }
-  
-  
   /* -------------
     processing stuff
   ---------- */
@@ -801,6 +1778,27 @@ public class Mirror {
     // Anything in here will be called automatically when 
     // the parent sketch shuts down. For instance, this might
     // shut down a thread used by this library.
+    kernel.dispose();
+    dropAsync();
+    release(asyncsource);
+    release(asyncback);
+    asyncsource = null;
+    asyncback = null;
+    release(mirage);
+    memosource = null;
+    fullsource = null;
+    pixelsource = null;
+    pixelimage = null;
+    pixelraster = null;
+    release(maskgfx);
+    release(invmaskgfx);
+    release(fullmirage);
+    release(lastsource);
+    mirage = null;
+    maskgfx = null;
+    invmaskgfx = null;
+    fullmirage = null;
+    lastsource = null;
   }  
   
   
@@ -0,0 +1,209 @@
+package nl.kw.processing.mirror;
+import processing.core.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+* A chain of mirrors that are drawn as one. Drawing the
+* mirage of every mirror in turn gives kaleidoscope like
+* images, but costs a full pass per mirror. A chain works
+* out the final source pixel of every pixel after all
+* reflections once, and then draws all mirrors in a
+* single pass over the pixels[] array.<br><br>
+*
+* The mirrors are applied in the order they were added,
+* as if applyMirage() was called on each of them. The
+* tint of the mirrors is not used; their length and
+* pane are. A chain can hold Mirrors or MirrorKernels;
+* it only uses the kernels.
+*/
+
+public class MirrorChain {
+  
+  private ArrayList<MirrorKernel> mirrors = new ArrayList<MirrorKernel>();
+  
+  private int[] remap;
+  private int remapw=0;
+  private int remaph=0;
+  private double[] geometry;
+  private int[] scratch;
+  
+  public MirrorChain() {
+  }
+  public MirrorChain(Mirror... mirrors) {
+    for (Mirror mirror : mirrors) {
+      this.add(mirror);
+    }
+  }
+  public MirrorChain(MirrorKernel... mirrors) {
+    for (MirrorKernel mirror : mirrors) {
+      this.add(mirror);
+    }
+  }
+  
+  public void add(Mirror mirror) {
+    this.add(mirror.getKernel());
+  }
+  
+  public void add(MirrorKernel mirror) {
+    this.mirrors.add(mirror);
+    this.remap=null;
+  }
+  
+  public void clear() {
+    this.mirrors.clear();
+    this.remap=null;
+  }
+  
+  public int size() {
+    return this.mirrors.size();
+  }
+  
+  public MirrorKernel get(int index) {
+    return this.mirrors.get(index);
+  }
+  
+  /* ---------------
+    public mirage methods
+  ----------- */
+  
+  /**
+  * Draw the mirages of all mirrors on the 
+  * pixels[] of any applet in one pass
+  */
+  
+  public void applyMirage(PApplet applet) {
+    applyMirage(applet.g);
+  }
+  
+  /**
+  * Draw the mirages of all mirrors on the 
+  * pixels[] of a PGraphics object in one pass
+  */
+  
+  public void applyMirage(PGraphics source) {
+    int[] raster = Mirror.getRaster(source);
+    if (raster!=null) {
+      applyMirage(raster,source.width,source.height);
+      Mirror.rasterChanged(source,raster);
+    } else {
+      source.loadPixels();
+      applyMirage(source.pixels,source.width,source.height);
+      source.updatePixels();
+    }
+  }
+  
+  /**
+  * Draw the mirages of all mirrors on a pixels[]
+  * array of w x h pixels in one pass
+  */
+  
+  public void applyMirage(int[] pixels, int w, int h) {
+    if (pixels.length < w*h) {
+      throw new RuntimeException("MirrorChain.applyMirage: pixels[] too small");
+    }
+    int[] map = getRemap(w,h);
+    if (scratch==null || scratch.length<w*h) {
+      scratch = new int[w*h];
+    }
+    int[] src = scratch;
+    System.arraycopy(pixels,0,src,0,w*h);
+    for (int i=0; i<w*h; i++) {
+      int j = map[i];
+      if (j>=0) pixels[i] = src[j];
+    }
+  }
+  
+  /* ---------------
+    internal methods
+  ----------- */
+  
+  // the remap table holds the final source index
+  // of every pixel, or -1 if no mirror changes it.
+  // it is kept as long as the size and the geometry
+  // of all mirrors stay the same
+  
+  private int[] getRemap(int w, int h) {
+    double[] geometry = getGeometry();
+    if (remap!=null && remapw==w && remaph==h && Arrays.equals(geometry,this.geometry)) {
+      return remap;
+    }
+    
+    int n = mirrors.size();
+    double[][] ks = new double[n][];
+    double[][] clips = new double[n][];
+    boolean[] masked = new boolean[n];
+    for (int m=0; m<n; m++) {
+      ks[m] = mirrors.get(m).getCoefficients(w,h);
+      clips[m] = mirrors.get(m).getClip(w,h);
+      masked[m] = mirrors.get(m).getUseMask();
+    }
+    
+    // the last mirror is drawn last, so walking
+    // back from the last mirror to the first gives
+    // the pixel in the original image
+    int[] map = new int[w*h];
+    int i=0;
+    for (int py=0; py<h; py++) {
+      for (int px=0; px<w; px++) {
+        int qx=px, qy=py;
+        for (int m=n-1; m>=0; m--) {
+          double[] k = ks[m];
+          if (masked[m] && k[MirrorKernel.S0]+k[MirrorKernel.SX]*qx+k[MirrorKernel.SY]*qy<0) continue;
+          if (!isInClip(clips[m],qx,qy)) continue;
+          int sx = (int)Math.floor(k[MirrorKernel.SX0]+k[MirrorKernel.SXX]*qx+k[MirrorKernel.SXY]*qy+.5);
+          int sy = (int)Math.floor(k[MirrorKernel.SY0]+k[MirrorKernel.SYX]*qx+k[MirrorKernel.SYY]*qy+.5);
+          if (sx<0 || sx>=w || sy<0 || sy>=h) continue;
+          qx=sx;
+          qy=sy;
+        }
+        map[i++] = (qx==px && qy==py)?-1:qy*w+qx;
+      }
+    }
+    
+    this.remap = map;
+    this.remapw = w;
+    this.remaph = h;
+    this.geometry = geometry;
+    return map;
+  }
+  
+  // a finite mirror only reflects
+  // the pixels inside its clip
+  private static boolean isInClip(double[] c, int qx, int qy) {
+    if (c==null) return true;
+    for (int i=0; i<c.length; i+=3) {
+      if (c[i] + c[i+1]*qx + c[i+2]*qy < 0) return false;
+    }
+    return true;
+  }
+  
+  // x, y, alpha and mask of every mirror, and the
+  // clip of its length and pane, if it has one
+  private double[] getGeometry() {
+    ArrayList<double[]> clips = new ArrayList<double[]>();
+    int size = 0;
+    for (MirrorKernel mirror : mirrors) {
+      double[] clip = mirror.getClip(0,0);
+      clips.add(clip);
+      size += 5 + ((clip==null)?0:clip.length);
+    }
+    double[] geometry = new double[size];
+    int i = 0;
+    for (int m=0; m<mirrors.size(); m++) {
+      MirrorKernel mirror = mirrors.get(m);
+      double[] clip = clips.get(m);
+      geometry[i++] = mirror.getX();
+      geometry[i++] = mirror.getY();
+      geometry[i++] = mirror.getAlpha();
+      geometry[i++] = mirror.getUseMask()?1:0;
+      geometry[i++] = (clip==null)?0:clip.length;
+      if (clip!=null) {
+        System.arraycopy(clip,0,geometry,i,clip.length);
+        i += clip.length;
+      }
+    }
+    return geometry;
+  }
+  
+}
@@ -0,0 +1,198 @@
+package nl.kw.processing.mirror;
+import java.util.Arrays;
+
+/**
+* A color stage for the mirage, drawn in the same pass as the
+* reflection by applyMirage(). It grades the mirage with a
+* lookup table per channel, applied after the tint of the
+* mirror, and fades it with the distance to the mirror line,
+* to transparent or to a fade color, so a mirror can look like
+* dark or foggy glass without an extra pass over the image.<br><br>
+*
+* The fade is a curve of opacities by distance in pixels; it is
+* sampled once per pixel of distance when it is set, and the
+* distance is added up along every row while drawing. One color
+* stage can be shared by several mirrors.
+*/
+
+public class MirrorColor {
+
+  private int[] red;
+  private int[] green;
+  private int[] blue;
+
+  // the opacity, 0 to 256, at 0, 1, 2 .. pixels
+  // from the line; the last one holds beyond
+  private int[] fade;
+  private boolean fadeto=false;
+  private int fadecolor=0;
+
+  // counts the changes, so kernels know
+  // when to build their tables again
+  private int version=0;
+
+  public MirrorColor() {
+  }
+
+  /**
+  * A color stage with the tables and fade of other
+  */
+
+  public MirrorColor(MirrorColor other) {
+    this.red = other.red;
+    this.green = other.green;
+    this.blue = other.blue;
+    this.fade = other.fade;
+    this.fadeto = other.fadeto;
+    this.fadecolor = other.fadecolor;
+  }
+
+  /*
+    getters and setters
+  */
+
+  /**
+  * Grade the red, green and blue of the mirage with
+  * tables of 256 values from 0 to 255. null leaves a
+  * channel as it is.
+  */
+
+  public void setLUT(int[] red, int[] green, int[] blue) {
+      this.red = getLUT(red);
+      this.green = getLUT(green);
+      this.blue = getLUT(blue);
+      this.version++;
+  }
+
+  /**
+  * Fade the mirage from full at the mirror line to
+  * nothing at this distance in pixels. 0 does not fade.
+  */
+
+  public void setFade(float distance) {
+      if (distance<0) {
+        throw new RuntimeException("MirrorColor.setFade: illegal distance "+distance);
+      }
+      if (distance==0) {
+        this.fade = null;
+        this.version++;
+      } else {
+        setFade(new float[] { 1, 0 },distance);
+      }
+  }
+
+  /**
+  * Fade the mirage with a curve: curve[i], from 0 to 1,
+  * is the opacity at i*step pixels from the mirror line,
+  * on either side. In between, the curve is interpolated,
+  * and beyond its end, the last value holds.
+  */
+
+  public void setFade(float[] curve, float step) {
+      if (curve==null || curve.length<1 || !(step>0)) {
+        throw new RuntimeException("MirrorColor.setFade: illegal curve");
+      }
+      int n = (int)Math.ceil((curve.length-1)*step);
+      int[] fade = new int[n+1];
+      for (int d=0; d<=n; d++) {
+        float x = d/step;
+        int i = Math.min((int)x,curve.length-1);
+        int j = Math.min(i+1,curve.length-1);
+        float v = curve[i] + (curve[j]-curve[i])*(x-i);
+        fade[d] = Math.max(0,Math.min(256,Math.round(v*256)));
+      }
+      this.fade = fade;
+      this.version++;
+  }
+
+  /**
+  * Fade to this color instead of to transparent
+  */
+
+  public void setFadeColor(int color) {
+      this.fadecolor = color;
+      this.fadeto = true;
+      this.version++;
+  }
+
+  /**
+  * Fade to transparent
+  */
+
+  public void noFadeColor() {
+      this.fadeto = false;
+      this.version++;
+  }
+
+  public int getFadeColor() {
+      return this.fadecolor;
+  }
+
+  public boolean isFadedTo() {
+      return this.fadeto;
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof MirrorColor)) return false;
+    MirrorColor c = (MirrorColor)o;
+    return Arrays.equals(red,c.red)
+      && Arrays.equals(green,c.green)
+      && Arrays.equals(blue,c.blue)
+      && Arrays.equals(fade,c.fade)
+      && fadeto==c.fadeto
+      && fadecolor==c.fadecolor;
+  }
+
+  public int hashCode() {
+    int hash = Arrays.hashCode(red);
+    hash = hash*31 + Arrays.hashCode(green);
+    hash = hash*31 + Arrays.hashCode(blue);
+    hash = hash*31 + Arrays.hashCode(fade);
+    return hash*31 + (fadeto?fadecolor:0);
+  }
+
+  /* ---------------
+    package methods
+  ----------- */
+
+  // the tint table of the kernel with the grade applied
+  // after it: channel c of value v becomes t[c*256+v],
+  // t[768] holds the opacity. tint may be null
+  int[] getTable(int[] tint) {
+    int[] t = new int[769];
+    int[][] luts = { red, green, blue };
+    for (int c=0; c<3; c++) {
+      for (int v=0; v<256; v++) {
+        int tv = (tint==null)?v:tint[c*256+v];
+        t[c*256+v] = (luts[c]==null)?tv:luts[c][tv];
+      }
+    }
+    t[768] = (tint==null)?255:tint[768];
+    return t;
+  }
+
+  int getVersion() {
+    return this.version;
+  }
+
+  int[] getFade() {
+    return this.fade;
+  }
+
+  /* ---------------
+    internal methods
+  ----------- */
+
+  private static int[] getLUT(int[] lut) {
+    if (lut==null) return null;
+    if (lut.length!=256) {
+      throw new RuntimeException("MirrorColor.setLUT: a table needs 256 values");
+    }
+    int[] copy = new int[256];
+    for (int v=0; v<256; v++) {
+      copy[v] = Math.max(0,Math.min(255,lut[v]));
+    }
+    return copy;
+  }
+
+}
@@ -0,0 +1,85 @@
+package nl.kw.processing.mirror;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+* The Flight Recorder event of MirrorStats, named
+* nl.kw.processing.mirror.Mirror. The event type is made
+* with jdk.jfr.EventFactory through reflection, so the
+* library compiles for Java 8 and runs on a JVM without
+* jdk.jfr; there, isAvailable() is false.
+*/
+
+class MirrorEvent {
+
+  private static final int PATH=0, WIDTH=1, HEIGHT=2, ELAPSED=3;
+
+  // the jdk.jfr.EventFactory, and one event of it that
+  // only tells if the event is recorded at all
+  private static volatile Object factory;
+  private static Object probe;
+  private static Method newEvent;
+  private static Method isEnabled;
+  private static Method set;
+  private static Method commit;
+
+  static {
+    try {
+      Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement")
+        .getConstructor(Class.class,Object.class);
+      Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor")
+        .getConstructor(Class.class,String.class,List.class);
+      List<Object> annotations = Arrays.asList(
+        annotation.newInstance(Class.forName("jdk.jfr.Name"),"nl.kw.processing.mirror.Mirror"),
+        annotation.newInstance(Class.forName("jdk.jfr.Label"),"Mirror"),
+        annotation.newInstance(Class.forName("jdk.jfr.Category"),new String[] { "Processing" }),
+        annotation.newInstance(Class.forName("jdk.jfr.Description"),"A render path or counter of a Mirror"),
+        annotation.newInstance(Class.forName("jdk.jfr.StackTrace"),false));
+      List<Object> fields = Arrays.asList(
+        field.newInstance(String.class,"path",Arrays.asList(
+          annotation.newInstance(Class.forName("jdk.jfr.Label"),"Path"))),
+        field.newInstance(int.class,"width",Arrays.asList(
+          annotation.newInstance(Class.forName("jdk.jfr.Label"),"Width"))),
+        field.newInstance(int.class,"height",Arrays.asList(
+          annotation.newInstance(Class.forName("jdk.jfr.Label"),"Height"))),
+        field.newInstance(long.class,"elapsed",Arrays.asList(
+          annotation.newInstance(Class.forName("jdk.jfr.Label"),"Elapsed"),
+          annotation.newInstance(Class.forName("jdk.jfr.Timespan"),"NANOSECONDS"))));
+      Class<?> events = Class.forName("jdk.jfr.EventFactory");
+      Class<?> event = Class.forName("jdk.jfr.Event");
+      Object f = events.getMethod("create",List.class,List.class).invoke(null,annotations,fields);
+      newEvent = events.getMethod("newEvent");
+      isEnabled = event.getMethod("isEnabled");
+      set = event.getMethod("set",int.class,Object.class);
+      commit = event.getMethod("commit");
+      probe = newEvent.invoke(f);
+      factory = f;
+    } catch (Throwable e) {
+      factory = null;
+    }
+  }
+
+  static boolean isAvailable() {
+    return factory!=null;
+  }
+
+  static void emit(String path, int width, int height, long elapsed) {
+    Object f = factory;
+    if (f==null) return;
+    try {
+      if (!((Boolean)isEnabled.invoke(probe,(Object[])null))) return;
+      Object event = newEvent.invoke(f,(Object[])null);
+      set.invoke(event,PATH,path);
+      set.invoke(event,WIDTH,width);
+      set.invoke(event,HEIGHT,height);
+      set.invoke(event,ELAPSED,elapsed);
+      commit.invoke(event,(Object[])null);
+    } catch (Throwable e) {
+      // stop recording rather than fail the render
+      factory = null;
+    }
+  }
+
+}
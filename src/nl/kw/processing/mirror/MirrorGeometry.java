@@ -0,0 +1,190 @@
+package nl.kw.processing.mirror;
+
+/**
+* An immutable snapshot of the geometry and colors of a mirror:
+* x, y, alpha, length, pane, tint, opacity, background color,
+* mask, sampling and color stage.
+* Take one with Mirror.getGeometry() and render it on any thread,
+* while the mirror itself moves on. A snapshot keeps no state
+* between calls, so many threads can render with the same one
+* without locks; scratch buffers are passed in by the caller,
+* or kept per thread.<br><br>
+*
+* Like the kernel, a snapshot works on ARGB int[] arrays
+* and does not need Processing.
+*/
+
+public final class MirrorGeometry {
+
+  private static final ThreadLocal<int[][]> SCRATCH = new ThreadLocal<int[][]>() {
+    protected int[][] initialValue() {
+      return new int[1][];
+    }
+  };
+
+  private final int bgcolor;
+
+  // never changed after the constructor, and
+  // without remap table, cache or threads
+  private final MirrorKernel kernel;
+
+  public MirrorGeometry(float x, float y, float alpha) {
+    this.kernel = new MirrorKernel(x,y,alpha);
+    this.bgcolor = 0;
+  }
+  public MirrorGeometry(float x, float y, float alpha, int tint, float opacity, int bgcolor, boolean usemask) {
+    this.kernel = new MirrorKernel(x,y,alpha);
+    this.kernel.setTint(tint);
+    this.kernel.setOpacity(opacity);
+    this.kernel.setUseMask(usemask);
+    this.bgcolor = bgcolor;
+  }
+  MirrorGeometry(MirrorKernel kernel, int bgcolor) {
+    this.kernel = new MirrorKernel(kernel);
+    this.kernel.setRemap(false);
+    this.kernel.setGeometryCache(null);
+    this.bgcolor = bgcolor;
+  }
+
+  /*
+    getters
+  */
+
+  public float getX() {
+      return this.kernel.getX();
+  }
+  public float getY() {
+      return this.kernel.getY();
+  }
+  public float getAlpha() {
+      return this.kernel.getAlpha();
+  }
+  public boolean isTinted() {
+      return this.kernel.isTinted();
+  }
+  public int getTint() {
+      return this.kernel.getTint();
+  }
+  public float getOpacity() {
+      return this.kernel.getOpacity();
+  }
+  public int getBGColor() {
+      return this.bgcolor;
+  }
+  public boolean getUseMask() {
+      return this.kernel.getUseMask();
+  }
+  public int getSampling() {
+      return this.kernel.getSampling();
+  }
+
+  /* ---------------
+    public render methods
+  ----------- */
+
+  /**
+  * Draw the mirage on a pixels[] array of w x h pixels in
+  * one pass. The source is copied to scratch first; if scratch
+  * is null or too small, a buffer of this thread is used.
+  */
+
+  public void applyMirage(int[] pixels, int w, int h, int[] scratch) {
+    if (pixels.length < w*h) {
+      throw new RuntimeException("MirrorGeometry.applyMirage: pixels[] too small");
+    }
+    if (scratch==null || scratch.length < w*h) {
+      scratch = getScratch(w*h);
+    }
+    System.arraycopy(pixels,0,scratch,0,w*h);
+    kernel.applyMirage(scratch,pixels,w,h);
+  }
+
+  /**
+  * Draw the mirage of src on dst, both w x h pixels
+  */
+
+  public void applyMirage(int[] src, int[] dst, int w, int h) {
+    kernel.applyMirage(src,dst,w,h);
+  }
+
+  /**
+  * Draw the full mirage of src on dst, without mask or tint.
+  * Pixels without a source pixel are set to the background.
+  */
+
+  public void getFullMirage(int[] src, int[] dst, int w, int h) {
+    kernel.getFullMirage(src,dst,w,h,0,0,w,h,bgcolor);
+  }
+
+  /**
+  * Draw the mirage of src on dst without tint, masked to
+  * only the mirror; pixels outside it are cleared.
+  */
+
+  public void getMirage(int[] src, int[] dst, int w, int h) {
+    getFullMirage(src,dst,w,h);
+    if (kernel.getUseMask() || kernel.isFinite()) kernel.applyMask(dst,w,h,false);
+  }
+
+  /**
+  * Reflect n points xs[i],ys[i], relative to the center,
+  * into outX[i],outY[i]
+  */
+
+  public void getMirage(float[] xs, float[] ys, float[] outX, float[] outY, int n) {
+    kernel.getMirage(xs,ys,outX,outY,n);
+  }
+
+  /**
+  * Set bit i of inside if point xs[i],ys[i]
+  * is on the mirror side of the line
+  */
+
+  public void isInside(float[] xs, float[] ys, long[] inside, int n) {
+    kernel.isInside(xs,ys,inside,n);
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof MirrorGeometry)) return false;
+    MirrorGeometry g = (MirrorGeometry)o;
+    return Float.compare(getX(),g.getX())==0
+      && Float.compare(getY(),g.getY())==0
+      && Float.compare(getAlpha(),g.getAlpha())==0
+      && isTinted()==g.isTinted()
+      && getTint()==g.getTint()
+      && Float.compare(getOpacity(),g.getOpacity())==0
+      && bgcolor==g.bgcolor
+      && getUseMask()==g.getUseMask()
+      && getSampling()==g.getSampling()
+      && kernel.isSameShape(g.kernel)
+      && (kernel.getColor()==null?g.kernel.getColor()==null:kernel.getColor().equals(g.kernel.getColor()));
+  }
+
+  public int hashCode() {
+    int hash = Float.floatToIntBits(getX());
+    hash = hash*31 + Float.floatToIntBits(getY());
+    hash = hash*31 + Float.floatToIntBits(getAlpha());
+    hash = hash*31 + getTint();
+    hash = hash*31 + bgcolor;
+    hash = hash*31 + kernel.getShapeHash();
+    if (kernel.getColor()!=null) hash = hash*31 + kernel.getColor().hashCode();
+    return hash;
+  }
+
+  public String toString() {
+    return "MirrorGeometry "+getX()+","+getY()+" "+getAlpha();
+  }
+
+  /* ---------------
+    internal methods
+  ----------- */
+
+  private static int[] getScratch(int length) {
+    int[][] holder = SCRATCH.get();
+    if (holder[0]==null || holder[0].length < length) {
+      holder[0] = new int[length];
+    }
+    return holder[0];
+  }
+
+}
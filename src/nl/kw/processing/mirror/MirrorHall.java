@@ -0,0 +1,170 @@
+package nl.kw.processing.mirror;
+import processing.core.*;
+
+/**
+* A hall of mirrors: two parallel mirrors facing each other,
+* which reflect the image between them over and over. The first
+* mirror is a Mirror or MirrorKernel, the second one is parallel
+* to it at a spacing, on the side the first mirror reflects.
+* The room between them is left alone; outside it, every pixel
+* shows the room as seen after one or more reflections.<br><br>
+*
+* Instead of drawing the mirrors in turn until the image stops
+* changing, a hall finds the source of every pixel directly: the
+* distance along the normal modulo twice the spacing, flipped on
+* odd periods. The depth limits the number of reflections; pixels
+* further away are left alone. The tint of the mirror is not used.<br><br>
+*
+* If the first mirror has a length or a pane, the hall only
+* reflects in front of the segment and inside the pane. Without
+* a mask, the room is drawn too, as the first mirror reflects it.
+*/
+
+public class MirrorHall {
+
+  private MirrorKernel kernel;
+  private Mirror mirror;
+  private float spacing;
+  private int depth=Integer.MAX_VALUE;
+
+  public MirrorHall(Mirror mirror, float spacing) {
+    this(mirror.getKernel(),spacing);
+    this.mirror = mirror;
+  }
+  public MirrorHall(MirrorKernel kernel, float spacing) {
+    this.kernel = kernel;
+    this.setSpacing(spacing);
+  }
+
+  /*
+    getters and setters
+  */
+
+  public MirrorKernel getKernel() {
+      return this.kernel;
+  }
+
+  /**
+  * Set the distance between the mirrors, in pixels
+  */
+
+  public void setSpacing(float spacing) {
+      if (!(spacing>=1)) {
+        throw new RuntimeException("MirrorHall.setSpacing: illegal spacing "+spacing);
+      }
+      this.spacing = spacing;
+  }
+  public float getSpacing() {
+      return this.spacing;
+  }
+
+  /**
+  * Draw at most this many reflections
+  */
+
+  public void setDepth(int depth) {
+      this.depth = Math.max(0,depth);
+  }
+  public int getDepth() {
+      return this.depth;
+  }
+
+  /* ---------------
+    public mirage methods
+  ----------- */
+
+  /**
+  * Draw the hall on the pixels[] of any applet in one pass
+  */
+
+  public void applyMirage(PApplet applet) {
+    applyMirage(applet.g);
+  }
+
+  /**
+  * Draw the hall on the pixels[] of a PGraphics object in one
+  * pass, on its raster if the mirror of the hall draws direct
+  */
+
+  public void applyMirage(PGraphics source) {
+    boolean direct = (mirror==null) || mirror.getDirect();
+    int[] raster = direct?Mirror.getRaster(source):null;
+    if (raster!=null) {
+      applyMirage(raster,source.width,source.height);
+      Mirror.rasterChanged(source,raster);
+    } else {
+      source.loadPixels();
+      applyMirage(source.pixels,source.width,source.height);
+      source.updatePixels();
+    }
+  }
+
+  /**
+  * Draw the hall on a pixels[] array of w x h pixels in one pass
+  */
+
+  public void applyMirage(int[] pixels, int w, int h) {
+    if (pixels.length < w*h) {
+      throw new RuntimeException("MirrorHall.applyMirage: pixels[] too small");
+    }
+    applyMirage(pixels.clone(),pixels,w,h);
+  }
+
+  /**
+  * Draw the hall of src on dst, both w x h pixels
+  */
+
+  public void applyMirage(int[] src, int[] dst, int w, int h) {
+    if (src.length < w*h || dst.length < w*h) {
+      throw new RuntimeException("MirrorHall.applyMirage: pixels[] too small");
+    }
+
+    // u is the distance from the first mirror into the
+    // room, along the normal nx,ny. the room is 0..d
+    double[] k = kernel.getCoefficients(w,h);
+    double[] clip = kernel.getClip(w,h);
+    boolean usemask = kernel.getUseMask();
+    double nx = -k[MirrorKernel.SX];
+    double ny = -k[MirrorKernel.SY];
+    double d = spacing;
+    double period = 2*d;
+    for (int py=0; py<h; py++) {
+      double u = -k[MirrorKernel.S0] + ny*py;
+      int i = py*w;
+      for (int px=0; px<w; px++, i++, u+=nx) {
+        if (!isInClip(clip,px,py)) continue;
+        double shift;
+        if (u>=0 && u<=d) {
+          
+          // the room, flipped in the first mirror
+          if (usemask || depth<1) continue;
+          shift = -2*u;
+        } else {
+          double n = Math.floor(u/d);
+          if (Math.abs(n)>depth) continue;
+
+          // even periods are a translation, odd ones a flip
+          double r = u - period*Math.floor(u/period);
+          shift = ((r<=d)?r:period-r) - u;
+        }
+        int sx = (int)Math.floor(px + nx*shift + .5);
+        int sy = (int)Math.floor(py + ny*shift + .5);
+        if (sx<0 || sy<0 || sx>=w || sy>=h) continue;
+        dst[i] = src[sy*w+sx];
+      }
+    }
+  }
+
+  /* ---------------
+    internal methods
+  ----------- */
+
+  private static boolean isInClip(double[] c, int px, int py) {
+    if (c==null) return true;
+    for (int i=0; i<c.length; i+=3) {
+      if (c[i] + c[i+1]*px + c[i+2]*py < 0) return false;
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,1457 @@
+package nl.kw.processing.mirror;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+* The raster core of a Mirror, without Processing. A kernel
+* draws the mirage of an ARGB pixels[] array of w x h pixels
+* onto itself, or onto another array. It can be used on its
+* own, in a plain JVM or on a headless server; the Mirror 
+* class draws on PGraphics objects using a kernel.<br><br>
+*
+* The position is always set relative to the center of
+* the image, and the angle is in radians.
+*/
+
+public class MirrorKernel {
+  
+  public static final int NEAREST=0;
+  public static final int BILINEAR=1;
+  
+  private static final float PI = (float) Math.PI;
+  private static final float HALF_PI = (float) (Math.PI/2.0);
+  private static final float TWO_PI = (float) (2.0*Math.PI);
+  
+  private float x;
+  private float y;
+  private float alpha;
+  
+  private boolean tinted=false;
+  private int tint=0xffffffff;
+  private float opacity=255;
+  
+  private boolean usemask=true;
+  private int sampling=NEAREST;
+  private MirrorColor color;
+  
+  // the table of getTintTable(), NO_TINT if there
+  // is none, or null when it has to be built again
+  private static final int[] NO_TINT = new int[0];
+  private volatile int[] tinttable;
+  private int colorversion;
+  
+  // a finite mirror: a segment of length,
+  // and/or a convex pane to draw in
+  private float length=0;
+  private float[] panex;
+  private float[] paney;
+  
+  private boolean useremap=false;
+  private int[] remap;
+  private int remapw=0;
+  private int remaph=0;
+  private GeometryCache cache;
+  
+  // level of detail: the rows from levelrow
+  // on are drawn at 1/2^level of the resolution
+  private int level=0;
+  private int levelrow=0;
+  
+  private int parallelism=1;
+  private ForkJoinPool pool;
+  private int[] scratch;
+  
+  public MirrorKernel() {
+    this(0,0,0);
+  }
+  public MirrorKernel(float x, float y, float alpha) {
+    this.position(x,y,alpha);
+  }
+  
+  /**
+  * A kernel with the geometry and settings of other, and
+  * a copy of its color stage, but without its threads or tables
+  */
+  
+  public MirrorKernel(MirrorKernel other) {
+    this.x = other.x;
+    this.y = other.y;
+    this.alpha = other.alpha;
+    this.tinted = other.tinted;
+    this.tint = other.tint;
+    this.opacity = other.opacity;
+    this.usemask = other.usemask;
+    this.sampling = other.sampling;
+    this.color = (other.color==null)?null:new MirrorColor(other.color);
+    this.useremap = other.useremap;
+    this.cache = other.cache;
+    this.length = other.length;
+    this.panex = other.panex;
+    this.paney = other.paney;
+  }
+  
+  /*
+    getters and setters
+  */
+  
+  /**
+  * Tint the mirage with the rgb of tint
+  */
+  
+  public void setTint(int tint) {
+      this.tint = tint;
+      this.tinted=true;
+      this.tinttable=null;
+  }
+  public int getTint() {
+      return this.tint;
+  }
+  
+  /**
+  * Set the opacity of the mirage, from 0 to 255
+  */
+  
+  public void setOpacity(float opacity) {
+      this.opacity = opacity;
+      this.tinted=true;
+      this.tinttable=null;
+  }
+  public float getOpacity() {
+      return this.opacity;
+  }
+  
+  /**
+  * Draw the mirage without tint or opacity
+  */
+  
+  public void noTint() {
+      this.tinted=false;
+      this.tinttable=null;
+  }
+  public boolean isTinted() {
+      return this.tinted;
+  }
+  
+  /**
+  * If false, the mirage is drawn on the whole
+  * image instead of only on the mirror side
+  */
+  
+  public void setUseMask(boolean usemask) {
+      if (usemask != this.usemask) {
+        this.usemask = usemask;
+        this.resetGeometry();
+      }
+  }
+  public boolean getUseMask() {
+      return this.usemask;
+  }
+  
+  /**
+  * Set how applyMirage() samples the source: NEAREST
+  * takes the nearest pixel, BILINEAR mixes the four
+  * nearest pixels, which is smoother at non-axis angles.
+  */
+  
+  public void setSampling(int sampling) {
+      this.sampling = sampling;
+  }
+  
+  public int getSampling() {
+      return this.sampling;
+  }
+  
+  /**
+  * Grade and fade the mirage of applyMirage() with a color
+  * stage, in the same pass. null removes the stage.
+  */
+  
+  public void setColor(MirrorColor color) {
+      this.color = color;
+      this.tinttable=null;
+  }
+  
+  public MirrorColor getColor() {
+      return this.color;
+  }
+  
+  /**
+  * Keep a table of the source pixel of every pixel
+  * for applyMirage(), so later calls with the same size
+  * and geometry only need to copy pixels. Moving or
+  * rotating the mirror drops the table. The table is
+  * only used with NEAREST sampling.
+  */
+  
+  public void setRemap(boolean remap) {
+      this.useremap = remap;
+      if (!remap) this.remap = null;
+  }
+  
+  public boolean getRemap() {
+      return this.useremap;
+  }
+  
+  /**
+  * True if the mirror is at 0, PI or +-HALF_PI, where
+  * the mirage is drawn with row copies
+  */
+  
+  public boolean isAxisAligned() {
+    return alpha==0 || alpha==HALF_PI || alpha==-HALF_PI || Math.abs(alpha)==PI;
+  }
+  
+  /**
+  * Draw the mirage at 1/2^level of the resolution: every
+  * block of 2^level x 2^level pixels shows the mirage of
+  * its top left pixel. Level 0 is the full resolution.
+  * Windows drawn by the tiled applyMirage() are always
+  * drawn at full resolution.
+  */
+  
+  public void setLevel(int level) {
+      setLevel(level,0);
+  }
+  
+  /**
+  * Draw the rows above row at full resolution, and
+  * the rows from row on at 1/2^level of it
+  */
+  
+  public void setLevel(int level, int row) {
+      if (level<0 || level>8) {
+        throw new RuntimeException("MirrorKernel.setLevel: illegal level "+level);
+      }
+      this.level = level;
+      this.levelrow = Math.max(0,row);
+  }
+  
+  public int getLevel() {
+      return this.level;
+  }
+  
+  public int getLevelRow() {
+      return this.levelrow;
+  }
+  
+  /**
+  * Keep remap tables in this cache, so a mirror that
+  * returns to an earlier position does not build its
+  * table again. Set null to not use a cache.
+  */
+  
+  public void setGeometryCache(GeometryCache cache) {
+      this.cache = cache;
+  }
+  
+  public GeometryCache getGeometryCache() {
+      return this.cache;
+  }
+  
+  /**
+  * Use this many threads in applyMirage(). The rows are
+  * split in bands that are drawn in parallel; small images
+  * are always drawn on the calling thread.
+  */
+  
+  public void setParallelism(int parallelism) {
+      if (parallelism<1) parallelism=1;
+      if (parallelism!=this.parallelism && pool!=null) {
+        pool.shutdown();
+        pool=null;
+      }
+      this.parallelism = parallelism;
+  }
+  
+  public int getParallelism() {
+      return this.parallelism;
+  }
+    
+  public float getX() {
+    return this.x;
+  }
+  public void setX(float x) {
+    if (x != this.x) {
+      this.x = x;
+      this.resetGeometry();
+    }
+  }
+  public float getY() {
+    return this.y;
+  }
+  public void setY(float y) {
+    if (y != this.y) {
+      this.y = y;
+      this.resetGeometry();
+    }
+  }
+  public float getAlpha() {
+    return this.alpha;
+  }
+  public void setAlpha(float alpha) {
+    if (alpha != this.alpha) {
+      
+      // normalize between PI and -PI
+      alpha = alpha % TWO_PI;
+      if (alpha>PI) alpha-=TWO_PI;
+      if (alpha<-PI) alpha+=TWO_PI;
+      
+      this.alpha = alpha;
+      this.resetGeometry();
+      
+    }
+  }
+  
+  public void position(float x, float y, float alpha) {
+    this.setX(x);
+    this.setY(y);
+    this.setAlpha(alpha);
+  }
+  
+  /**
+  * Make the mirror a segment of this length, centered on
+  * x,y, that only reflects what is in front of it. A
+  * length of 0 makes the mirror infinite again.
+  */
+  
+  public void setLength(float length) {
+    if (length<0) {
+      throw new RuntimeException("MirrorKernel.setLength: illegal length "+length);
+    }
+    if (length != this.length) {
+      this.length = length;
+      this.resetGeometry();
+    }
+  }
+  public float getLength() {
+    return this.length;
+  }
+  
+  /**
+  * Only draw the mirage inside a convex polygon pane, with
+  * corners xs[i],ys[i] relative to the center. null
+  * removes the pane.
+  */
+  
+  public void setPane(float[] xs, float[] ys) {
+    if (xs==null || ys==null) {
+      this.panex = null;
+      this.paney = null;
+    } else {
+      if (xs.length!=ys.length || xs.length<3 || !isConvex(xs,ys)) {
+        throw new RuntimeException("MirrorKernel.setPane: not a convex polygon");
+      }
+      this.panex = xs.clone();
+      this.paney = ys.clone();
+    }
+    this.resetGeometry();
+  }
+  
+  /**
+  * True if the mirror has a length or a pane
+  */
+  
+  public boolean isFinite() {
+    return length>0 || panex!=null;
+  }
+  
+  /* ---------------
+    public kernel methods
+  ----------- */
+  
+  /**
+  * Reflect n points xs[i],ys[i], relative to the center,
+  * into outX[i],outY[i]. The out arrays may be xs and ys.
+  */
+
+  public void getMirage(float[] xs, float[] ys, float[] outX, float[] outY, int n) {
+    if (xs.length<n || ys.length<n || outX.length<n || outY.length<n) {
+      throw new RuntimeException("MirrorKernel.getMirage: arrays too small");
+    }
+    double[] r = getReflection();
+    float a = (float)r[0], b = (float)r[1];
+    float e = (float)r[2], f = (float)r[3];
+    for (int i=0; i<n; i++) {
+      float vx = xs[i];
+      float vy = ys[i];
+      outX[i] = a*vx + b*vy + e;
+      outY[i] = b*vx - a*vy + f;
+    }
+  }
+
+  /**
+  * Set bit i of inside (bit i%64 of word i/64) if point
+  * xs[i],ys[i], relative to the center, is on the mirror
+  * side of the line, and in its pane or in front of it if
+  * it is finite. Clear it if not.
+  */
+
+  public void isInside(float[] xs, float[] ys, long[] inside, int n) {
+    if (xs.length<n || ys.length<n || inside.length<(n+63)/64) {
+      throw new RuntimeException("MirrorKernel.isInside: arrays too small");
+    }
+    double[] r = getReflection();
+    float sn = (float)r[4], cs = (float)r[5];
+    float x = this.x, y = this.y;
+    for (int i0=0; i0<n; i0+=64) {
+      int i1 = Math.min(i0+64,n);
+      long word = 0;
+      for (int i=i0; i<i1; i++) {
+        float s = (ys[i]-y)*cs - (xs[i]-x)*sn;
+        word |= (s>=0?1L:0L) << (i-i0);
+      }
+      inside[i0>>6] = word;
+    }
+    
+    // the sides of a finite mirror
+    // clear what they cut off
+    double[] c = getClip(0,0);
+    if (c!=null) {
+      for (int i=0; i<n; i++) {
+        for (int j=0; j<c.length; j+=3) {
+          if (c[j] + c[j+1]*xs[i] + c[j+2]*ys[i] < 0) {
+            inside[i>>6] &= ~(1L << (i&63));
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+  * Draw the mirage on a pixels[] array of w x h pixels in one pass
+  */
+
+  public void applyMirage(int[] pixels, int w, int h) {
+    applyMirage(pixels,w,h,null);
+  }
+  
+  // the same, with a scratch buffer of the caller. if
+  // it is null or too small, the kernel keeps its own
+  void applyMirage(int[] pixels, int w, int h, int[] scratch) {
+    if (pixels.length < w*h) {
+      throw new RuntimeException("MirrorKernel.applyMirage: pixels[] too small");
+    }
+
+    // without a mask, every pixel is written, so we
+    // can not read from the same buffer. with a mask, 
+    // pixels near the line may still read a pixel that
+    // was already written; that only shows if it is 
+    // tinted twice, if another thread wrote it, if
+    // bilinear sampling mixes it with its neighbours,
+    // or if a coarse block reads the source of its corner
+    int[] t = getTintTable();
+    int[] src = pixels;
+    if (!usemask || t!=null || parallelism>1 || sampling==BILINEAR || level>0) {
+      if (scratch==null || scratch.length<pixels.length) {
+        if (this.scratch==null || this.scratch.length!=pixels.length) {
+          this.scratch = new int[pixels.length];
+        }
+        scratch = this.scratch;
+      }
+      
+      // a finite mirror only reads the rows that its
+      // region reflects; coarse blocks may read around them
+      int from = 0, to = pixels.length;
+      if (isFinite() && level==0) {
+        int[] b = getBounds(getCoefficients(w,h),getClip(w,h),usemask,w,h);
+        int[] r = (b==null)?null:getMirageBounds(b[0],b[1],b[2],b[3],w,h);
+        if (r==null) return;
+        from = r[1]*w;
+        to = (r[1]+r[3])*w;
+      }
+      System.arraycopy(pixels,from,scratch,from,to-from);
+      src = scratch;
+    }
+    applyMirage(src,pixels,w,h,t);
+  }
+
+  /**
+  * Draw the mirage of src on dst, both w x h pixels. The 
+  * pixels of dst that are outside the mirror are left alone.
+  * src and dst should not be the same array.
+  */
+
+  public void applyMirage(int[] src, int[] dst, int w, int h) {
+    if (src.length < w*h || dst.length < w*h) {
+      throw new RuntimeException("MirrorKernel.applyMirage: pixels[] too small");
+    }
+    applyMirage(src,dst,w,h,getTintTable());
+  }
+
+  private void applyMirage(int[] src, int[] dst, int w, int h, int[] t) {
+    draw(getPass(src,dst,w,h,t,true));
+  }
+
+  /**
+  * Draw the full mirage of src on dst, both w x h pixels,
+  * without mask or tint. Only the rectangle rx,ry,rw,rh of
+  * dst is drawn; pixels in it without a source pixel are
+  * set to bgcolor.
+  */
+
+  public void getFullMirage(int[] src, int[] dst, int w, int h, int rx, int ry, int rw, int rh, int bgcolor) {
+    if (src.length < w*h || dst.length < w*h) {
+      throw new RuntimeException("MirrorKernel.getFullMirage: pixels[] too small");
+    }
+    int x0 = Math.max(rx,0), x1 = Math.min(rx+rw,w);
+    int y0 = Math.max(ry,0), y1 = Math.min(ry+rh,h);
+    if (x0>=x1 || y0>=y1) return;
+    for (int py=y0; py<y1; py++) {
+      Arrays.fill(dst,py*w+x0,py*w+x1,bgcolor);
+    }
+    Pass p = getPass(src,dst,w,h,null,false);
+    p.usemask = false;
+    p.clip = null;
+    p.xmin = x0;
+    p.xmax = x1-1;
+    p.ymin = y0;
+    p.ymax = y1;
+    draw(p);
+  }
+
+  /**
+  * Draw the mirage of a w x h image on a window of it. The
+  * window dst holds the pixels dx,dy,dw,dh of the image and
+  * src holds the pixels sx,sy,sw,sh, which should cover
+  * getMirageBounds(dx,dy,dw,dh,w,h). Pixels of dst that
+  * are not on the mirror are left alone.
+  */
+
+  public void applyMirage(int[] src, int sx, int sy, int sw, int sh, int[] dst, int dx, int dy, int dw, int dh, int w, int h) {
+    if (src.length < sw*sh || dst.length < dw*dh) {
+      throw new RuntimeException("MirrorKernel.applyMirage: window too small");
+    }
+    int x0 = Math.max(dx,0), x1 = Math.min(dx+dw,w);
+    int y0 = Math.max(dy,0), y1 = Math.min(dy+dh,h);
+    if (x0>=x1 || y0>=y1) return;
+    Pass p = getPass(src,dst,w,h,getTintTable(),false);
+    p.sw = sw;
+    p.soff = sy*sw+sx;
+    p.dw = dw;
+    p.doff = dy*dw+dx;
+    p.xmin = Math.max(p.xmin,x0);
+    p.xmax = Math.min(p.xmax,x1-1);
+    p.ymin = Math.max(p.ymin,y0);
+    p.ymax = Math.min(p.ymax,y1);
+    p.step = 1;
+    if (p.xmin>p.xmax) return;
+    draw(p);
+  }
+
+  /**
+  * Get the bounds x,y,w,h of the pixels whose mirage is
+  * drawn from the rectangle rx,ry,rw,rh of a w x h source,
+  * or null if there are none. These are the pixels to draw
+  * again when only that rectangle of the source changed.
+  */
+
+  public int[] getMirageBounds(int rx, int ry, int rw, int rh, int w, int h) {
+
+    // the reflection is its own inverse, so the pixels
+    // that read from the rectangle are its reflection.
+    // one pixel margin for rounding and bilinear sampling
+    double[] k = getCoefficients(w,h);
+    double minx=Double.MAX_VALUE, miny=Double.MAX_VALUE;
+    double maxx=-Double.MAX_VALUE, maxy=-Double.MAX_VALUE;
+    for (int c=0; c<4; c++) {
+      double cx = (c&1)==0 ? rx-.5 : rx+rw-.5;
+      double cy = (c&2)==0 ? ry-.5 : ry+rh-.5;
+      double mx = k[SX0] + k[SXX]*cx + k[SXY]*cy;
+      double my = k[SY0] + k[SYX]*cx + k[SYY]*cy;
+      minx = Math.min(minx,mx);
+      miny = Math.min(miny,my);
+      maxx = Math.max(maxx,mx);
+      maxy = Math.max(maxy,my);
+    }
+    int x0 = Math.max(0,(int)Math.floor(minx)-1);
+    int y0 = Math.max(0,(int)Math.floor(miny)-1);
+    int x1 = Math.min(w,(int)Math.ceil(maxx)+2);
+    int y1 = Math.min(h,(int)Math.ceil(maxy)+2);
+    if (x0>=x1 || y0>=y1) return null;
+    return new int[] { x0, y0, x1-x0, y1-y0 };
+  }
+
+  /**
+  * Clear the pixels of a w x h image that are outside the 
+  * mirror, without a mask image. If smooth, the pixels within
+  * half a pixel of the line get a partial alpha.
+  */
+
+  public void applyMask(int[] pixels, int w, int h, boolean smooth) {
+    if (pixels.length < w*h) {
+      throw new RuntimeException("MirrorKernel.applyMask: pixels[] too small");
+    }
+
+    // the side of a pixel is linear in px, so per row
+    // only the span outside the mirror is cleared
+    double[] k = getCoefficients(w,h);
+    double[] clip = getClip(w,h);
+    double ds = k[SX];
+    double edge = smooth?.5:0;
+    for (int py=0; py<h; py++) {
+      double s0 = k[S0] + k[SY]*py;
+      int row = py*w;
+
+      // [x0,x1] is covered at all, [f0,f1] is covered fully.
+      // the edges of a pane are not smoothed
+      double lo = 0;
+      double hi = w-1;
+      if (usemask) {
+        lo = spanLo(s0+edge,ds,lo);
+        hi = spanHi(s0+edge,ds,hi);
+      }
+      if (clip!=null) {
+        for (int i=0; i<clip.length; i+=3) {
+          double c0 = clip[i] + clip[i+2]*py;
+          lo = spanLo(c0,clip[i+1],lo);
+          hi = spanHi(c0,clip[i+1],hi);
+        }
+      }
+      if (lo>hi) {
+        Arrays.fill(pixels,row,row+w,0);
+        continue;
+      }
+      int x0 = (int)Math.ceil(lo);
+      int x1 = (int)Math.floor(hi);
+      if (x0>0) Arrays.fill(pixels,row,row+Math.min(x0,w),0);
+      if (x1<w-1) Arrays.fill(pixels,row+Math.max(x1+1,0),row+w,0);
+      if (!smooth || !usemask) continue;
+
+      int f0 = Math.max(x0,(int)Math.ceil(spanLo(s0-edge,ds,0)));
+      int f1 = Math.min(x1,(int)Math.floor(spanHi(s0-edge,ds,w-1)));
+      if (f0>f1) {
+        f0 = x1+1;
+        f1 = x1;
+      }
+      for (int px=x0; px<=x1; px++) {
+        if (px==f0) px=f1+1;
+        if (px>x1) break;
+        double cover = s0 + ds*px + edge;
+        if (cover<1) {
+          int c = pixels[row+px];
+          int a = (int)((c>>>24)*cover+.5);
+          pixels[row+px] = (a<<24) | (c&0xffffff);
+        }
+      }
+    }
+  }
+  
+
+  /* ---------------
+    internal kernel methods
+  ----------- */
+
+  // the coefficients are the reflection written out
+  // in pixel coordinates, so a whole row can be
+  // walked by adding a constant delta per pixel:
+  //   srcx = k[SX0] + k[SXX]*px + k[SXY]*py
+  //   srcy = k[SY0] + k[SYX]*px + k[SYY]*py
+  //   side = k[S0]  + k[SX] *px + k[SY] *py
+  // a pixel is inside the mirror if side >= 0
+
+  static final int SX0=0, SXX=1, SXY=2;
+  static final int SY0=3, SYX=4, SYY=5;
+  static final int S0=6, SX=7, SY=8;
+
+  // below this many pixels, applyMirage()
+  // is not worth splitting over threads
+  private static final int PARALLEL_MIN = 256*256;
+
+  // 16.16 fixed point, which limits 
+  // bilinear sampling to 32767 pixels
+  private static final int FIXED_ONE = 1<<16;
+  private static final int FIXED_MAX = 1<<15;
+
+  // keep clear of the pixel edges, so the
+  // rounding in the row loop stays in bounds
+  private static final double EDGE = 1e-6;
+
+  double[] getCoefficients(int w, int h) {
+    double[] r = getReflection();
+    double a = r[0], b = r[1], e = r[2], f = r[3];
+    double sn = r[4], cs = r[5];
+
+    // centered to pixel coordinates
+    int cx = w/2;
+    int cy = h/2;
+
+    double[] k = new double[9];
+    k[SXX] = a;
+    k[SXY] = b;
+    k[SX0] = cx - a*cx - b*cy + e;
+    k[SYX] = b;
+    k[SYY] = -a;
+    k[SY0] = cy - b*cx + a*cy + f;
+    k[SX] = -sn;
+    k[SY] = cs;
+    k[S0] = (cx+x)*sn - (cy+y)*cs;
+    return k;
+  }
+
+  // reflection around the line through x,y, in
+  // centered coordinates: m = A*v + (e,f), with
+  // A = [ cos2a sin2a ; sin2a -cos2a ]. returns
+  // { cos2a, sin2a, e, f, sin, cos }
+  private double[] getReflection() {
+
+    // snap the axis aligned angles, so
+    // they match isInside() exactly
+    double cs,sn;
+    if (alpha==0) { cs=1; sn=0; }
+    else if (alpha==HALF_PI) { cs=0; sn=1; }
+    else if (alpha==-HALF_PI) { cs=0; sn=-1; }
+    else if (Math.abs(alpha)==PI) { cs=-1; sn=0; }
+    else { cs = Math.cos(alpha); sn = Math.sin(alpha); }
+
+    double a = cs*cs-sn*sn;
+    double b = 2*sn*cs;
+    double e = x - (a*x + b*y);
+    double f = y - (b*x - a*y);
+    return new double[] { a, b, e, f, sn, cs };
+  }
+
+  // the extra sides of a finite mirror, as triples c0,cx,cy
+  // with c0 + cx*px + cy*py >= 0 inside, in pixel coordinates.
+  // null if the mirror is infinite
+  double[] getClip(int w, int h) {
+    if (!isFinite()) return null;
+    int cx = w/2;
+    int cy = h/2;
+    int n = (length>0?2:0) + (panex!=null?panex.length:0);
+    double[] c = new double[n*3];
+    int i = 0;
+    if (length>0) {
+
+      // t = (v-p).(cos,sin) from -length/2 to length/2
+      double[] r = getReflection();
+      double sn = r[4], cs = r[5];
+      double t0 = -(cx+x)*cs - (cy+y)*sn;
+      c[i++] = length/2.0 + t0; c[i++] = cs; c[i++] = sn;
+      c[i++] = length/2.0 - t0; c[i++] = -cs; c[i++] = -sn;
+    }
+    if (panex!=null) {
+
+      // left of every edge of a counter clockwise
+      // pane, right of every edge of a clockwise one
+      double sign = (getArea(panex,paney)>0)?1:-1;
+      int m = panex.length;
+      for (int j=0; j<m; j++) {
+        double x0 = panex[j]+cx, y0 = paney[j]+cy;
+        double x1 = panex[(j+1)%m]+cx, y1 = paney[(j+1)%m]+cy;
+        double ex = (x1-x0)*sign, ey = (y1-y0)*sign;
+        c[i++] = -ex*y0 + ey*x0;
+        c[i++] = -ey;
+        c[i++] = ex;
+      }
+    }
+    return c;
+  }
+
+  // true if centered vx,vy is in the pane and in
+  // front of the segment, or if the mirror is infinite
+  boolean isInPane(float vx, float vy) {
+    if (!isFinite()) return true;
+    double[] c = getClip(0,0);
+    for (int i=0; i<c.length; i+=3) {
+      if (c[i] + c[i+1]*vx + c[i+2]*vy < 0) return false;
+    }
+    return true;
+  }
+
+  // true if other has the same length and pane
+  boolean isSameShape(MirrorKernel other) {
+    return Float.compare(length,other.length)==0
+      && Arrays.equals(panex,other.panex)
+      && Arrays.equals(paney,other.paney);
+  }
+
+  int getShapeHash() {
+    int hash = Float.floatToIntBits(length);
+    hash = hash*31 + Arrays.hashCode(panex);
+    return hash*31 + Arrays.hashCode(paney);
+  }
+
+  // the polygon x0,y0,x1,y1,.. of the rectangle rx0,ry0-rx1,ry1
+  // on the mirror side and inside the clip, or null if empty
+  double[] getRegion(double rx0, double ry0, double rx1, double ry1, int w, int h) {
+    double[] k = getCoefficients(w,h);
+    double[] clip = getClip(w,h);
+    double[] poly = { rx0,ry0, rx1,ry0, rx1,ry1, rx0,ry1 };
+    if (usemask) poly = clipPolygon(poly,k[S0],k[SX],k[SY]);
+    if (clip!=null) {
+      for (int i=0; i<clip.length && poly!=null; i+=3) {
+        poly = clipPolygon(poly,clip[i],clip[i+1],clip[i+2]);
+      }
+    }
+    return poly;
+  }
+
+  // the bounds x,y,w,h of the pixels in the
+  // region of a finite mirror, or null if none
+  private static int[] getBounds(double[] k, double[] clip, boolean usemask, int w, int h) {
+    double[] poly = { 0,0, w-1,0, w-1,h-1, 0,h-1 };
+    if (usemask) poly = clipPolygon(poly,k[S0],k[SX],k[SY]);
+    for (int i=0; i<clip.length && poly!=null; i+=3) {
+      poly = clipPolygon(poly,clip[i],clip[i+1],clip[i+2]);
+    }
+    if (poly==null) return null;
+    double minx=w, miny=h, maxx=-1, maxy=-1;
+    for (int i=0; i<poly.length; i+=2) {
+      minx = Math.min(minx,poly[i]);
+      maxx = Math.max(maxx,poly[i]);
+      miny = Math.min(miny,poly[i+1]);
+      maxy = Math.max(maxy,poly[i+1]);
+    }
+    int x0 = Math.max(0,(int)Math.floor(minx));
+    int y0 = Math.max(0,(int)Math.floor(miny));
+    int x1 = Math.min(w-1,(int)Math.ceil(maxx));
+    int y1 = Math.min(h-1,(int)Math.ceil(maxy));
+    if (x0>x1 || y0>y1) return null;
+    return new int[] { x0, y0, x1-x0+1, y1-y0+1 };
+  }
+
+  // keep the part of a convex polygon where
+  // c0 + cx*x + cy*y >= 0, or null if none
+  private static double[] clipPolygon(double[] poly, double c0, double cx, double cy) {
+    int n = poly.length/2;
+    double[] out = new double[4*n];
+    int m = 0;
+    for (int i=0; i<n; i++) {
+      double x0 = poly[2*i], y0 = poly[2*i+1];
+      double x1 = poly[(2*i+2)%poly.length], y1 = poly[(2*i+3)%poly.length];
+      double d0 = c0 + cx*x0 + cy*y0;
+      double d1 = c0 + cx*x1 + cy*y1;
+      if (d0>=0) {
+        out[m++] = x0;
+        out[m++] = y0;
+      }
+      if ((d0>=0) != (d1>=0)) {
+        double f = d0/(d0-d1);
+        out[m++] = x0 + (x1-x0)*f;
+        out[m++] = y0 + (y1-y0)*f;
+      }
+    }
+    if (m<6) return null;
+    return Arrays.copyOf(out,m);
+  }
+
+  private static double getArea(float[] xs, float[] ys) {
+    double area = 0;
+    for (int i=0; i<xs.length; i++) {
+      int j = (i+1)%xs.length;
+      area += (double)xs[i]*ys[j] - (double)xs[j]*ys[i];
+    }
+    return area/2;
+  }
+
+  private static boolean isConvex(float[] xs, float[] ys) {
+    int n = xs.length;
+    int sign = 0;
+    for (int i=0; i<n; i++) {
+      double ax = xs[(i+1)%n]-xs[i], ay = ys[(i+1)%n]-ys[i];
+      double bx = xs[(i+2)%n]-xs[(i+1)%n], by = ys[(i+2)%n]-ys[(i+1)%n];
+      double cross = ax*by - ay*bx;
+      if (cross==0) continue;
+      int s = cross>0?1:-1;
+      if (sign!=0 && s!=sign) return false;
+      sign = s;
+    }
+    return sign!=0;
+  }
+
+  // one call of applyMirage(): all that the row loops
+  // need, shared by the threads that draw it. only the
+  // columns xmin..xmax of the rows ymin..ymax-1 are drawn.
+  // src and dst may be windows on the w x h image: pixel
+  // px,py is at py*sw+px-soff in src, py*dw+px-doff in dst
+  private static class Pass {
+    double[] k;
+    int[] map, t, src, dst;
+    int w, h;
+    int sw, soff, dw, doff;
+    int xmin, xmax, ymin, ymax;
+    double[] clip;
+    int axis;
+    int step, coarse;
+    boolean usemask, bilinear;
+    boolean colors, fadeto;
+    int[] fade;
+    int fadecolor;
+  }
+  
+  // axis aligned passes: every row comes from one
+  // source row, either as is or reversed
+  private static final int ROWS=1;
+  private static final int COLUMNS=2;
+
+  // the remap table is only built if the pass can use
+  // it: windows and partial passes draw from coefficients
+  private Pass getPass(int[] src, int[] dst, int w, int h, int[] t, boolean remap) {
+    Pass p = new Pass();
+    p.src = src;
+    p.dst = dst;
+    p.w = w;
+    p.h = h;
+    p.t = t;
+    p.sw = w;
+    p.dw = w;
+    p.xmin = 0;
+    p.xmax = w-1;
+    p.ymin = 0;
+    p.ymax = h;
+    p.usemask = usemask;
+    p.bilinear = sampling==BILINEAR && w<FIXED_MAX && h<FIXED_MAX;
+    p.step = (level>0 && levelrow<h)?1<<level:1;
+    p.coarse = levelrow;
+    p.colors = color!=null && t!=null;
+    if (p.colors) {
+      p.fade = color.getFade();
+      p.fadeto = color.isFadedTo();
+      p.fadecolor = color.getFadeColor();
+    }
+    p.map = (remap && useremap && !p.bilinear && p.step==1 && !p.colors)?getRemap(w,h):null;
+    p.k = getCoefficients(w,h);
+    p.axis = getAxis(p.k,p.bilinear);
+    p.clip = getClip(w,h);
+    if (p.clip!=null) {
+      
+      // only the rows and columns of the
+      // region that can be drawn at all
+      int[] b = getBounds(p.k,p.clip,usemask,w,h);
+      if (b==null) {
+        p.ymax = p.ymin;
+      } else {
+        p.xmin = b[0];
+        p.xmax = b[0]+b[2]-1;
+        p.ymin = b[1];
+        p.ymax = b[1]+b[3];
+      }
+    }
+    return p;
+  }
+  
+  // with bilinear sampling, only whole pixel offsets
+  // are a copy; anything else has to be mixed
+  private static int getAxis(double[] k, boolean bilinear) {
+    if (k[SXY]!=0 || k[SYX]!=0) return 0;
+    if (k[SXX]==1 && k[SYY]==-1) {
+      if (bilinear && k[SY0]!=Math.rint(k[SY0])) return 0;
+      return ROWS;
+    }
+    if (k[SXX]==-1 && k[SYY]==1) {
+      if (bilinear && k[SX0]!=Math.rint(k[SX0])) return 0;
+      return COLUMNS;
+    }
+    return 0;
+  }
+
+  private void draw(Pass p) {
+    int pixels = (p.ymax-p.ymin)*(p.xmax-p.xmin+1);
+    if (parallelism>1 && pixels>=PARALLEL_MIN) {
+      if (pool==null) pool = new ForkJoinPool(parallelism);
+      int band = Math.max(PARALLEL_MIN/4,pixels/(parallelism*4));
+      pool.invoke(new MirageTask(p,p.ymin,p.ymax,band));
+    } else {
+      drawRows(p,p.ymin,p.ymax);
+    }
+  }
+
+  // find the span of px in row py for which the
+  // pixel is inside and the source pixel exists.
+  // returns false if there is no such span
+  private static boolean getSpan(Pass p, int py, int[] span) {
+    double[] k = p.k;
+    int w = p.w, h = p.h;
+
+    double sx0 = k[SX0] + k[SXY]*py;
+    double sy0 = k[SY0] + k[SYY]*py;
+    double dsx = k[SXX];
+    double dsy = k[SYX];
+
+    double lo = p.xmin, hi = p.xmax;
+    if (p.usemask) {
+      double s0 = k[S0] + k[SY]*py;
+      lo = spanLo(s0,k[SX],lo);
+      hi = spanHi(s0,k[SX],hi);
+    }
+    if (p.clip!=null) {
+      double[] c = p.clip;
+      for (int i=0; i<c.length; i+=3) {
+        double c0 = c[i] + c[i+2]*py;
+        lo = spanLo(c0,c[i+1],lo);
+        hi = spanHi(c0,c[i+1],hi);
+      }
+    }
+    lo = spanLo(sx0+.5-EDGE,dsx,lo);
+    hi = spanHi(sx0+.5-EDGE,dsx,hi);
+    lo = spanLo(w-.5-EDGE-sx0,-dsx,lo);
+    hi = spanHi(w-.5-EDGE-sx0,-dsx,hi);
+    lo = spanLo(sy0+.5-EDGE,dsy,lo);
+    hi = spanHi(sy0+.5-EDGE,dsy,hi);
+    lo = spanLo(h-.5-EDGE-sy0,-dsy,lo);
+    hi = spanHi(h-.5-EDGE-sy0,-dsy,hi);
+    if (lo>hi) return false;
+
+    span[0] = (int)Math.ceil(lo);
+    span[1] = (int)Math.floor(hi);
+    return span[0]<=span[1];
+  }
+
+  // draw rows y0 to y1, either from the coefficients
+  // or from the remap table if there is one
+  private static void drawRows(Pass p, int y0, int y1) {
+    int[] span = new int[2];
+    if (p.colors) {
+      
+      // with a color stage, a row is drawn as is in a
+      // row buffer, and then colored and blended on dst
+      Pass r = getRowPass(p);
+      for (int py=y0; py<y1; py++) {
+        if (!getSpan(p,py,span)) continue;
+        int x0 = span[0], x1 = span[1];
+        drawRow(r,py,y0,span);
+        drawColors(p,r.dst,py,x0,x1);
+      }
+    } else {
+      for (int py=y0; py<y1; py++) {
+        drawRow(p,py,y0,span);
+      }
+    }
+  }
+  
+  private static void drawRow(Pass p, int py, int y0, int[] span) {
+    if (p.axis!=0) {
+      drawRowAxis(p,py,span);
+    } else if (p.step>1 && py>=p.coarse) {
+      drawRowCoarse(p,py,Math.max(y0,p.coarse),span);
+    } else if (p.map!=null) {
+      drawRowRemap(p,py);
+    } else if (p.bilinear) {
+      drawRowBilinear(p,py,span);
+    } else {
+      drawRow(p,py,span);
+    }
+  }
+  
+  // the pass of a row buffer: pixel px of
+  // any row is at px, and is not tinted
+  private static Pass getRowPass(Pass p) {
+    Pass r = new Pass();
+    r.k = p.k;
+    r.src = p.src;
+    r.dst = new int[p.w];
+    r.w = p.w;
+    r.h = p.h;
+    r.sw = p.sw;
+    r.soff = p.soff;
+    r.dw = 0;
+    r.doff = 0;
+    r.xmin = p.xmin;
+    r.xmax = p.xmax;
+    r.ymin = p.ymin;
+    r.ymax = p.ymax;
+    r.clip = p.clip;
+    r.axis = p.axis;
+    r.step = p.step;
+    r.coarse = p.coarse;
+    r.usemask = p.usemask;
+    r.bilinear = p.bilinear;
+    return r;
+  }
+  
+  // tint, grade and fade the pixels x0 to x1 of a row
+  // and draw them over dst. the distance to the line
+  // is added up along the row, in 1/65536 pixels, from
+  // the row start, so it does not depend on the span
+  private static void drawColors(Pass p, int[] row, int py, int x0, int x1) {
+    double[] k = p.k;
+    int[] t = p.t, dst = p.dst, fade = p.fade;
+    int n = (fade==null)?0:fade.length-1;
+    int fr = (p.fadecolor>>16)&0xff, fg = (p.fadecolor>>8)&0xff, fb = p.fadecolor&0xff;
+    long dfd = Math.round(k[SX]*FIXED_ONE);
+    long fd = Math.round((k[S0] + k[SY]*py)*FIXED_ONE) + dfd*x0;
+    int i = py*p.dw+x0-p.doff;
+    for (int px=x0; px<=x1; px++) {
+      int c = row[px];
+      int a = ((c>>>24)*t[768]+127)/255;
+      int r = t[(c>>16)&0xff];
+      int g = t[256+((c>>8)&0xff)];
+      int b = t[512+(c&0xff)];
+      if (fade!=null) {
+        int f = fade[(int)Math.min((fd<0?-fd:fd)>>16,n)];
+        if (p.fadeto) {
+          r = fr+(((r-fr)*f)>>8);
+          g = fg+(((g-fg)*f)>>8);
+          b = fb+(((b-fb)*f)>>8);
+        } else {
+          a = (a*f)>>8;
+        }
+        fd += dfd;
+      }
+      dst[i] = over((a<<24)|(r<<16)|(g<<8)|b,dst[i]);
+      i++;
+    }
+  }
+
+  // every pixel only depends on its source pixel,
+  // so bands of rows can be drawn independently
+  private static class MirageTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Pass p;
+    private final int y0, y1, band;
+
+    MirageTask(Pass p, int y0, int y1, int band) {
+      this.p=p; this.y0=y0; this.y1=y1; this.band=band;
+    }
+
+    protected void compute() {
+      if ((y1-y0)*(p.xmax-p.xmin+1)<=band || y1-y0<2) {
+        drawRows(p,y0,y1);
+      } else {
+        int ym = (y0+y1)>>>1;
+        invokeAll(
+          new MirageTask(p,y0,ym,band),
+          new MirageTask(p,ym,y1,band)
+        );
+      }
+    }
+  }
+
+  private static void drawRow(Pass p, int py, int[] span) {
+    if (!getSpan(p,py,span)) return;
+    int x0 = span[0], x1 = span[1];
+    double[] k = p.k;
+    int[] src = p.src, dst = p.dst, t = p.t;
+    int sw = p.sw, soff = p.soff;
+    double dsx = k[SXX];
+    double dsy = k[SYX];
+
+    // +.5 and truncate is a round(),
+    // since the source is never negative
+    double fx = k[SX0] + k[SXY]*py + dsx*x0 + .5;
+    double fy = k[SY0] + k[SYY]*py + dsy*x0 + .5;
+    int i = py*p.dw+x0-p.doff;
+    if (t==null) {
+      for (int px=x0; px<=x1; px++) {
+        dst[i++] = src[((int)fy)*sw+(int)fx-soff];
+        fx += dsx;
+        fy += dsy;
+      }
+    } else {
+      for (int px=x0; px<=x1; px++) {
+        dst[i] = blend(t,src[((int)fy)*sw+(int)fx-soff],dst[i]);
+        i++;
+        fx += dsx;
+        fy += dsy;
+      }
+    }
+  }
+
+  // one source pixel per block of step x step pixels.
+  // the blocks are aligned to 0,0, so a pixel does not
+  // depend on the span or band it is drawn in. without
+  // tint, the other rows of a block copy what its first
+  // row drew, if that row was drawn coarse in this band,
+  // from row y0 on
+  private static void drawRowCoarse(Pass p, int py, int y0, int[] span) {
+    int by = py-py%p.step;
+    if (by!=py && by>=y0 && p.t==null && p.dw>0 && getSpan(p,by,span)) {
+      int a0 = span[0], a1 = span[1];
+      if (!getSpan(p,py,span)) return;
+      int x0 = span[0], x1 = span[1];
+      int c0 = Math.max(a0,x0), c1 = Math.min(a1,x1);
+      if (c0<=c1) {
+        System.arraycopy(p.dst,by*p.dw+c0-p.doff,p.dst,py*p.dw+c0-p.doff,c1-c0+1);
+        drawBlocks(p,py,by,x0,c0-1);
+        drawBlocks(p,py,by,c1+1,x1);
+      } else {
+        drawBlocks(p,py,by,x0,x1);
+      }
+    } else if (getSpan(p,py,span)) {
+      drawBlocks(p,py,by,span[0],span[1]);
+    }
+  }
+  
+  // the top left pixel of a block may be off the
+  // mirror, so its source is kept on the image
+  private static void drawBlocks(Pass p, int py, int by, int x0, int x1) {
+    if (x0>x1) return;
+    double[] k = p.k;
+    int[] src = p.src, dst = p.dst, t = p.t;
+    int w = p.w, h = p.h, step = p.step;
+    double fx = k[SX0] + k[SXY]*by + .5;
+    double fy = k[SY0] + k[SYY]*by + .5;
+    int i = py*p.dw+x0-p.doff;
+    for (int bx=x0-x0%step; bx<=x1; bx+=step) {
+      int sx = Math.min(Math.max((int)(fx + k[SXX]*bx),0),w-1);
+      int sy = Math.min(Math.max((int)(fy + k[SYX]*bx),0),h-1);
+      int val = src[sy*p.sw+sx-p.soff];
+      int end = Math.min(bx+step-1,x1);
+      if (t==null) {
+        for (int px=Math.max(bx,x0); px<=end; px++) {
+          dst[i++] = val;
+        }
+      } else {
+        for (int px=Math.max(bx,x0); px<=end; px++) {
+          dst[i] = blend(t,val,dst[i]);
+          i++;
+        }
+      }
+    }
+  }
+
+  // at 0, PI and +-HALF_PI the source of a row is
+  // one row, so it is a block copy or a reversed copy
+  private static void drawRowAxis(Pass p, int py, int[] span) {
+    if (!getSpan(p,py,span)) return;
+    int x0 = span[0];
+    int n = span[1]-span[0]+1;
+    double[] k = p.k;
+    int[] src = p.src, dst = p.dst, t = p.t;
+    int sx = (int)(k[SX0] + k[SXY]*py + k[SXX]*x0 + .5);
+    int sy = (int)(k[SY0] + k[SYY]*py + k[SYX]*x0 + .5);
+    int s = sy*p.sw+sx-p.soff;
+    int i = py*p.dw+x0-p.doff;
+    if (p.axis==ROWS && t==null) {
+      System.arraycopy(src,s,dst,i,n);
+      return;
+    }
+    int ds = (p.axis==ROWS)?1:-1;
+    int end = i+n;
+    if (t==null) {
+      while (i<end) {
+        dst[i++] = src[s];
+        s += ds;
+      }
+    } else {
+      while (i<end) {
+        dst[i] = blend(t,src[s],dst[i]);
+        i++;
+        s += ds;
+      }
+    }
+  }
+
+  // bilinear sampling in 16.16 fixed point. the top 
+  // 8 bits of the fraction weigh the 4 source pixels
+  private static void drawRowBilinear(Pass p, int py, int[] span) {
+    if (!getSpan(p,py,span)) return;
+    int x0 = span[0], x1 = span[1];
+    double[] k = p.k;
+    int[] src = p.src, dst = p.dst, t = p.t;
+    int w = p.w, h = p.h;
+    int sw = p.sw, soff = p.soff;
+    // start from px=0, so a pixel does not depend
+    // on where the span starts
+    int dfx = (int)Math.round(k[SXX]*FIXED_ONE);
+    int dfy = (int)Math.round(k[SYX]*FIXED_ONE);
+    int fx = (int)Math.round((k[SX0] + k[SXY]*py)*FIXED_ONE) + dfx*x0;
+    int fy = (int)Math.round((k[SY0] + k[SYY]*py)*FIXED_ONE) + dfy*x0;
+    int i = py*p.dw+x0-p.doff;
+    for (int px=x0; px<=x1; px++) {
+      int sx = fx>>16;
+      int sy = fy>>16;
+      int sx0 = sx<0?0:(sx>=w?w-1:sx);
+      int sx1 = sx+1<0?0:(sx+1>=w?w-1:sx+1);
+      int sy0 = sy<0?0:(sy>=h?h-1:sy);
+      int sy1 = sy+1<0?0:(sy+1>=h?h-1:sy+1);
+      int wx = (fx>>8)&0xff;
+      int wy = (fy>>8)&0xff;
+      int top = lerp(src[sy0*sw+sx0-soff],src[sy0*sw+sx1-soff],wx);
+      int bottom = lerp(src[sy1*sw+sx0-soff],src[sy1*sw+sx1-soff],wx);
+      int c = lerp(top,bottom,wy);
+      dst[i] = (t==null)?c:blend(t,c,dst[i]);
+      i++;
+      fx += dfx;
+      fy += dfy;
+    }
+  }
+
+  // mix two colors, f from 0 to 256. red and blue
+  // are mixed in one multiply, alpha and green in another
+  private static int lerp(int c0, int c1, int f) {
+    if (f==0 || c0==c1) return c0;
+    int g = 256-f;
+    int rb = (((c0&0xff00ff)*g + (c1&0xff00ff)*f)>>>8)&0xff00ff;
+    int ag = (((c0>>>8)&0xff00ff)*g + ((c1>>>8)&0xff00ff)*f)&0xff00ff00;
+    return ag|rb;
+  }
+
+  // the remap table holds the source index of every
+  // pixel, or -1 if the pixel is left alone. it only
+  // depends on w,h and the geometry, so it is kept
+  // until the geometry changes
+
+  private int[] getRemap(int w, int h) {
+    if (remap!=null && remapw==w && remaph==h) {
+      return remap;
+    }
+    int kind = usemask?GeometryCache.REMAP:GeometryCache.REMAP_UNMASKED;
+    // the cache key has no length or pane
+    boolean cached = cache!=null && !isFinite();
+    int[] map = cached?(int[])cache.get(kind,x,y,alpha,w,h):null;
+    if (map==null) {
+      map = createRemap(w,h);
+      if (cached) cache.put(kind,x,y,alpha,w,h,map,4L*w*h);
+    }
+    remap = map;
+    remapw = w;
+    remaph = h;
+    return map;
+  }
+
+  private int[] createRemap(int w, int h) {
+    int[] map = new int[w*h];
+    Arrays.fill(map,-1);
+    Pass p = new Pass();
+    p.k = getCoefficients(w,h);
+    p.w = w;
+    p.h = h;
+    p.xmin = 0;
+    p.xmax = w-1;
+    p.usemask = usemask;
+    p.clip = getClip(w,h);
+    double[] k = p.k;
+    int[] span = new int[2];
+    for (int py=0; py<h; py++) {
+      if (!getSpan(p,py,span)) continue;
+      double fx = k[SX0] + k[SXY]*py + k[SXX]*span[0] + .5;
+      double fy = k[SY0] + k[SYY]*py + k[SYX]*span[0] + .5;
+      int i = py*w+span[0];
+      for (int px=span[0]; px<=span[1]; px++) {
+        map[i++] = ((int)fy)*w+(int)fx;
+        fx += k[SXX];
+        fy += k[SYX];
+      }
+    }
+    return map;
+  }
+
+  private static void drawRowRemap(Pass p, int py) {
+    int[] map = p.map, src = p.src, dst = p.dst, t = p.t;
+    int from = py*p.w+p.xmin;
+    int to = py*p.w+p.xmax+1;
+    if (t==null) {
+      for (int i=from; i<to; i++) {
+        int j = map[i];
+        if (j>=0) dst[i] = src[j];
+      }
+    } else {
+      for (int i=from; i<to; i++) {
+        int j = map[i];
+        if (j>=0) dst[i] = blend(t,src[j],dst[i]);
+      }
+    }
+  }
+
+  // the lowest px for which c0+c1*px >= 0
+  private static double spanLo(double c0, double c1, double lo) {
+    if (c1>0) return Math.max(lo,-c0/c1);
+    if (c1==0 && c0<0) return Double.POSITIVE_INFINITY;
+    return lo;
+  }
+
+  // the highest px for which c0+c1*px >= 0
+  private static double spanHi(double c0, double c1, double hi) {
+    if (c1<0) return Math.min(hi,-c0/c1);
+    return hi;
+  }
+
+  // apply tint() and opacity() to srcval,
+  // like drawing it with tint(tint,opacity)
+  
+  int tintColor(int srcval) {
+    if (!tinted) return srcval;
+    int a = Math.round((srcval>>>24)*opacity/255);
+    int r = (((srcval>>16)&0xff)*((tint>>16)&0xff)+127)/255;
+    int g = (((srcval>>8)&0xff)*((tint>>8)&0xff)+127)/255;
+    int b = ((srcval&0xff)*(tint&0xff)+127)/255;
+    return (a<<24)|(r<<16)|(g<<8)|b;
+  }
+  
+  // and draw the result over dstval
+  
+  int tintColor(int srcval, int dstval) {
+    if (!tinted) return srcval;
+    return over(tintColor(srcval),dstval);
+  }
+  
+  // the same for the kernel, using lookup tables:
+  // channel c of value v tints to t[c*256+v], and
+  // t[768] holds the opacity. with a color stage, the
+  // grade is in the table too. null if neither is used.
+  // the table is kept until the tint or the grade changes
+  
+  private int[] getTintTable() {
+    MirrorColor color = this.color;
+    int version = (color==null)?0:color.getVersion();
+    int[] t = tinttable;
+    if (t==null || version!=colorversion) {
+      if (color!=null) {
+        t = color.getTable(tinted?getTint(tint,opacity):null);
+      } else {
+        t = tinted?getTint(tint,opacity):NO_TINT;
+      }
+      colorversion = version;
+      tinttable = t;
+    }
+    return (t==NO_TINT)?null:t;
+  }
+  
+  private static int[] getTint(int tint, float opacity) {
+    int[] t = new int[769];
+    int[] tc = { (tint>>16)&0xff, (tint>>8)&0xff, tint&0xff };
+    for (int c=0; c<3; c++) {
+      for (int v=0; v<256; v++) {
+        t[c*256+v] = (v*tc[c]+127)/255;
+      }
+    }
+    t[768] = Math.max(0,Math.min(255,Math.round(opacity)));
+    return t;
+  }
+  
+  private static int blend(int[] t, int srcval, int dstval) {
+    int a = ((srcval>>>24)*t[768]+127)/255;
+    int r = t[(srcval>>16)&0xff];
+    int g = t[256+((srcval>>8)&0xff)];
+    int b = t[512+(srcval&0xff)];
+    return over((a<<24)|(r<<16)|(g<<8)|b,dstval);
+  }
+  
+  // src over dst. red and blue are mixed
+  // in one multiply, green in another
+  
+  private static int over(int srcval, int dstval) {
+    int a = srcval>>>24;
+    if (a==255) return srcval;
+    if (a==0) return dstval;
+    int f = a+(a>>7);
+    int rb = (((srcval&0xff00ff)*f + (dstval&0xff00ff)*(256-f))>>>8)&0xff00ff;
+    int g = (((srcval&0xff00)*f + (dstval&0xff00)*(256-f))>>>8)&0xff00;
+    int da = dstval>>>24;
+    int oa = a+(da*(255-a)+127)/255;
+    return (oa<<24)|rb|g;
+  }
+  
+  
+  // everything cached for the
+  // geometry is dropped here
+  
+  private void resetGeometry() {
+    this.remap=null;
+  }
+  
+  /**
+  * Stop the threads used by setParallelism()
+  */
+
+  public void dispose() {
+    if (pool!=null) {
+      pool.shutdown();
+      pool=null;
+    }
+  }
+  
+}
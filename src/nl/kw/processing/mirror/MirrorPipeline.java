@@ -0,0 +1,271 @@
+package nl.kw.processing.mirror;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+* Draw the mirage of a sequence of frames, offline, on several
+* cores. A reader thread decodes the frames, a pool of workers
+* draws their mirage, and the calling thread encodes them in
+* order. The stages are linked by bounded queues, so a slow
+* stage holds back the others instead of filling the memory.<br><br>
+*
+* Every worker has its own copy of the kernel of the mirror.
+* An Animation can move that copy for every frame; without one,
+* all frames use the geometry of the mirror. Does not need
+* Processing: the default reader and writer use ImageIO.
+*/
+
+public class MirrorPipeline {
+
+  /**
+  * A frame of the sequence, its index and its ARGB pixels
+  */
+
+  public static class Frame {
+    public final int index;
+    public final int width;
+    public final int height;
+    public final int[] pixels;
+
+    public Frame(int index, int width, int height, int[] pixels) {
+      if (pixels.length < width*height) {
+        throw new RuntimeException("MirrorPipeline.Frame: pixels[] too small");
+      }
+      this.index=index; this.width=width; this.height=height; this.pixels=pixels;
+    }
+  }
+
+  /**
+  * Read frame index, or return null after the last frame
+  */
+
+  public interface Reader {
+    Frame read(int index) throws IOException;
+  }
+
+  /**
+  * Write a frame. Frames are written in order,
+  * always from the thread that called run()
+  */
+
+  public interface Writer {
+    void write(Frame frame) throws IOException;
+  }
+
+  /**
+  * Set the geometry of the kernel for frame index
+  */
+
+  public interface Animation {
+    void position(MirrorKernel kernel, int index);
+  }
+
+  private MirrorKernel template;
+  private Reader reader;
+  private Writer writer;
+  private Animation animation;
+
+  private int workers = Runtime.getRuntime().availableProcessors();
+  private int capacity = 4;
+
+  private volatile Throwable error;
+
+  public MirrorPipeline(Mirror mirror, Reader reader, Writer writer) {
+    this(mirror.getKernel(),reader,writer);
+  }
+  public MirrorPipeline(MirrorKernel kernel, Reader reader, Writer writer) {
+    this.template = kernel;
+    this.reader = reader;
+    this.writer = writer;
+  }
+
+  /*
+    getters and setters
+  */
+
+  public void setAnimation(Animation animation) {
+      this.animation = animation;
+  }
+  public Animation getAnimation() {
+      return this.animation;
+  }
+
+  /**
+  * Draw this many frames at the same time
+  */
+
+  public void setWorkers(int workers) {
+      this.workers = Math.max(1,workers);
+  }
+  public int getWorkers() {
+      return this.workers;
+  }
+
+  /**
+  * Let each queue hold this many frames. At most
+  * 2 x capacity + workers frames are in memory.
+  */
+
+  public void setCapacity(int capacity) {
+      this.capacity = Math.max(1,capacity);
+  }
+  public int getCapacity() {
+      return this.capacity;
+  }
+
+  /* ---------------
+    public pipeline methods
+  ----------- */
+
+  /**
+  * Read, mirror and write frames from 0 until the reader
+  * returns null or count frames are written, whichever
+  * comes first; count<0 is no limit. Returns the number
+  * of frames written.
+  */
+
+  public int run(int count) {
+    error = null;
+    final int limit = (count<0)?Integer.MAX_VALUE:count;
+    final BlockingQueue<Frame> decoded = new ArrayBlockingQueue<Frame>(capacity);
+    final BlockingQueue<Frame> mirrored = new ArrayBlockingQueue<Frame>(capacity);
+    final Semaphore inflight = new Semaphore(2*capacity+workers);
+    final Frame end = new Frame(-1,0,0,new int[0]);
+    final AtomicInteger total = new AtomicInteger(limit);
+
+    Thread[] threads = new Thread[workers+1];
+    threads[0] = new Thread(new Runnable() {
+      public void run() {
+        try {
+          int index=0;
+          while (index<limit) {
+            inflight.acquire();
+            Frame frame = reader.read(index);
+            if (frame==null) break;
+            decoded.put(frame);
+            index++;
+          }
+          total.set(index);
+          for (int i=0; i<workers; i++) decoded.put(end);
+        } catch (Throwable e) {
+          fail(e);
+        }
+      }
+    },"MirrorPipeline reader");
+
+    for (int i=1; i<=workers; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          MirrorKernel kernel = new MirrorKernel(template);
+          try {
+            while (true) {
+              Frame frame = decoded.take();
+              if (frame==end) break;
+              if (animation!=null) animation.position(kernel,frame.index);
+              kernel.applyMirage(frame.pixels,frame.width,frame.height);
+              mirrored.put(frame);
+            }
+          } catch (Throwable e) {
+            fail(e);
+          } finally {
+            kernel.dispose();
+          }
+        }
+      },"MirrorPipeline worker "+i);
+    }
+
+    for (Thread t : threads) {
+      t.setDaemon(true);
+      t.start();
+    }
+
+    // frames arrive in any order; keep
+    // them until it is their turn
+    HashMap<Integer,Frame> waiting = new HashMap<Integer,Frame>();
+    int next=0;
+    try {
+      while (error==null && next<total.get()) {
+        Frame frame = mirrored.poll(100,TimeUnit.MILLISECONDS);
+        if (frame==null) continue;
+        waiting.put(frame.index,frame);
+        while ((frame = waiting.remove(next))!=null) {
+          writer.write(frame);
+          inflight.release();
+          next++;
+        }
+      }
+    } catch (Throwable e) {
+      fail(e);
+    }
+
+    if (error!=null) {
+      for (Thread t : threads) t.interrupt();
+      throw new RuntimeException("MirrorPipeline.run: "+error,error);
+    }
+    return next;
+  }
+
+  /* ---------------
+    default readers and writers
+  ----------- */
+
+  /**
+  * Read the files that String.format(pattern,index) names,
+  * until the first one that does not exist
+  */
+
+  public static Reader files(final String pattern) {
+    return new Reader() {
+      public Frame read(int index) throws IOException {
+        File file = new File(String.format(pattern,index));
+        if (!file.exists()) return null;
+        BufferedImage image = ImageIO.read(file);
+        if (image==null) {
+          throw new IOException("MirrorPipeline: can not decode "+file);
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        return new Frame(index,w,h,image.getRGB(0,0,w,h,null,0,w));
+      }
+    };
+  }
+
+  /**
+  * Write each frame to the file String.format(pattern,index)
+  * names, in the format of its extension, eg png
+  */
+
+  public static Writer toFiles(final String pattern) {
+    return new Writer() {
+      public void write(Frame frame) throws IOException {
+        File file = new File(String.format(pattern,frame.index));
+        String name = file.getName();
+        String format = name.substring(name.lastIndexOf('.')+1).toLowerCase();
+        boolean opaque = format.equals("jpg") || format.equals("jpeg") || format.equals("bmp");
+        BufferedImage image = new BufferedImage(frame.width,frame.height,
+          opaque?BufferedImage.TYPE_INT_RGB:BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0,0,frame.width,frame.height,frame.pixels,0,frame.width);
+        if (!ImageIO.write(image,format,file)) {
+          throw new IOException("MirrorPipeline: can not encode "+format);
+        }
+      }
+    };
+  }
+
+  /* ---------------
+    internal methods
+  ----------- */
+
+  private void fail(Throwable e) {
+    if (error==null) error = e;
+  }
+
+}
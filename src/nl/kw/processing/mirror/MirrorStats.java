@@ -0,0 +1,138 @@
+package nl.kw.processing.mirror;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+* Counters of the work a Mirror does: how often each render path
+* was called and how long it took, how many PGraphics it created,
+* how often it drew a mask or inverted mask, how often a mask
+* was reused, and how often a memoised mirage was returned.
+* Get them with Mirror.getStats().<br><br>
+*
+* When the JVM has Flight Recorder (jdk.jfr), the same points
+* are also recorded as nl.kw.processing.mirror.Mirror events;
+* without it, only the counters are kept.
+*/
+
+public class MirrorStats {
+
+  public static final int FULL_MIRAGE=0;
+  public static final int MASK=1;
+  public static final int KERNEL=2;
+
+  private static final String[] PATHS = { "getFullMirage", "mask", "applyMirage" };
+
+  private static final int ALLOCATIONS=0;
+  private static final int REBUILDS=1;
+  private static final int MASK_HITS=2;
+  private static final int MASK_MISSES=3;
+  private static final int MEMO_HITS=4;
+
+  private static final String[] COUNTS = { "createGraphics", "rebuild", "maskHit", "maskMiss", "memoHit" };
+
+  private static final boolean JFR = MirrorEvent.isAvailable();
+
+  private AtomicLongArray calls = new AtomicLongArray(PATHS.length);
+  private AtomicLongArray nanos = new AtomicLongArray(PATHS.length);
+  private AtomicLongArray counts = new AtomicLongArray(COUNTS.length);
+
+  /*
+    getters
+  */
+
+  /**
+  * The number of calls of path FULL_MIRAGE, MASK or KERNEL
+  */
+
+  public long getCalls(int path) {
+      return this.calls.get(path);
+  }
+
+  /**
+  * The nanoseconds spent in path FULL_MIRAGE, MASK or KERNEL
+  */
+
+  public long getNanos(int path) {
+      return this.nanos.get(path);
+  }
+
+  public long getAllocations() {
+      return this.counts.get(ALLOCATIONS);
+  }
+  public long getRebuilds() {
+      return this.counts.get(REBUILDS);
+  }
+  public long getMaskHits() {
+      return this.counts.get(MASK_HITS);
+  }
+  public long getMaskMisses() {
+      return this.counts.get(MASK_MISSES);
+  }
+  public long getMemoHits() {
+      return this.counts.get(MEMO_HITS);
+  }
+
+  public void reset() {
+    for (int i=0; i<PATHS.length; i++) {
+      calls.set(i,0);
+      nanos.set(i,0);
+    }
+    for (int i=0; i<COUNTS.length; i++) {
+      counts.set(i,0);
+    }
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("MirrorStats");
+    for (int i=0; i<PATHS.length; i++) {
+      sb.append(' ').append(PATHS[i]).append('=').append(calls.get(i))
+        .append('/').append(nanos.get(i)/1000000.0).append("ms");
+    }
+    for (int i=0; i<COUNTS.length; i++) {
+      sb.append(' ').append(COUNTS[i]).append('=').append(counts.get(i));
+    }
+    return sb.toString();
+  }
+
+  /* ---------------
+    package methods
+  ----------- */
+
+  // time a path: long t = stats.begin(); .. stats.end(path,t,w,h)
+
+  long begin() {
+    return System.nanoTime();
+  }
+
+  void end(int path, long begin, int w, int h) {
+    long elapsed = System.nanoTime()-begin;
+    calls.incrementAndGet(path);
+    nanos.addAndGet(path,elapsed);
+    if (JFR) MirrorEvent.emit(PATHS[path],w,h,elapsed);
+  }
+
+  void allocated(int w, int h) {
+    count(ALLOCATIONS,w,h);
+  }
+  void rebuilt(int w, int h) {
+    count(REBUILDS,w,h);
+  }
+  void maskHit(int w, int h) {
+    count(MASK_HITS,w,h);
+  }
+  void maskMiss(int w, int h) {
+    count(MASK_MISSES,w,h);
+  }
+  void memoHit(int w, int h) {
+    count(MEMO_HITS,w,h);
+  }
+
+  /* ---------------
+    internal methods
+  ----------- */
+
+  private void count(int counter, int w, int h) {
+    counts.incrementAndGet(counter);
+    if (JFR) MirrorEvent.emit(COUNTS[counter],w,h,0);
+  }
+
+}
@@ -0,0 +1,158 @@
+package nl.kw.processing.mirror;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+* Draw the mirage of images that are too large for the heap,
+* tile by tile, between memory mapped files. The files hold
+* raw ARGB pixels: w x h big-endian ints, row by row, without
+* a header. For every tile of the target, only the source
+* pixels its mirage needs are read, so the memory used depends
+* on the tile size and not on the image size.<br><br>
+*
+* The target gets the same pixels as the kernel's
+* applyMirage(src,dst,w,h) would give on the whole image
+* in memory. Does not need Processing.
+*/
+
+public class MirrorTiles {
+
+  private MirrorKernel kernel;
+  private int tile=1024;
+
+  public MirrorTiles(Mirror mirror) {
+    this(mirror.getKernel());
+  }
+  public MirrorTiles(MirrorKernel kernel) {
+    this.kernel = kernel;
+  }
+
+  /*
+    getters and setters
+  */
+
+  /**
+  * Draw tiles of size x size pixels. Each tile needs about
+  * 3 x size x size ints of heap.
+  */
+
+  public void setTileSize(int size) {
+    if (size<1 || (long)size*size>Integer.MAX_VALUE) {
+      throw new RuntimeException("MirrorTiles.setTileSize: illegal size "+size);
+    }
+    this.tile = size;
+  }
+  public int getTileSize() {
+    return this.tile;
+  }
+
+  /* ---------------
+    public tile methods
+  ----------- */
+
+  /**
+  * Draw the mirage of the raw ARGB file source, of w x h
+  * pixels, into the raw ARGB file target. The target is
+  * created or overwritten; it can not be the source.
+  */
+
+  public void applyMirage(File source, File target, int w, int h) throws IOException {
+    if (source.getCanonicalFile().equals(target.getCanonicalFile())) {
+      throw new RuntimeException("MirrorTiles.applyMirage: target is source");
+    }
+    RandomAccessFile in = new RandomAccessFile(source,"r");
+    try {
+      RandomAccessFile out = new RandomAccessFile(target,"rw");
+      try {
+        out.setLength(4L*w*h);
+        applyMirage(in.getChannel(),out.getChannel(),w,h);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+  * Draw the mirage of w x h raw ARGB pixels from the channel
+  * source into the channel target, which is as large
+  */
+
+  public void applyMirage(FileChannel source, FileChannel target, int w, int h) throws IOException {
+    if (w<1 || h<1) {
+      throw new RuntimeException("MirrorTiles.applyMirage: illegal size "+w+"x"+h);
+    }
+    if (source.size() < 4L*w*h || target.size() < 4L*w*h) {
+      throw new RuntimeException("MirrorTiles.applyMirage: file too small for "+w+"x"+h);
+    }
+    int[] dst = new int[tile*tile];
+    int[] src = null;
+    for (int ty=0; ty<h; ty+=tile) {
+      int th = Math.min(tile,h-ty);
+      for (int tx=0; tx<w; tx+=tile) {
+        int tw = Math.min(tile,w-tx);
+
+        // the pixels left alone come from the source,
+        // so the tile starts as a copy of it
+        read(source,w,tx,ty,tw,th,dst);
+
+        int[] r = kernel.getMirageBounds(tx,ty,tw,th,w,h);
+        if (r!=null) {
+          if ((long)r[2]*r[3]>Integer.MAX_VALUE) {
+            throw new RuntimeException("MirrorTiles.applyMirage: tile size "+tile+" too large for this mirror");
+          }
+          if (src==null || src.length < r[2]*r[3]) src = new int[r[2]*r[3]];
+          read(source,w,r[0],r[1],r[2],r[3],src);
+          kernel.applyMirage(src,r[0],r[1],r[2],r[3],dst,tx,ty,tw,th,w,h);
+        }
+
+        write(target,w,tx,ty,tw,th,dst);
+      }
+    }
+  }
+
+  /* ---------------
+    internal methods
+  ----------- */
+
+  // map the rows of the rectangle in strips of at most
+  // MAP_MAX bytes, or one row at a time if a row is wider,
+  // so a mapping stays small whatever the image width
+  private static final long MAP_MAX = 1L<<26;
+
+  private static void read(FileChannel channel, int w, int x, int y, int rw, int rh, int[] pixels) throws IOException {
+    copy(channel,FileChannel.MapMode.READ_ONLY,w,x,y,rw,rh,pixels);
+  }
+
+  private static void write(FileChannel channel, int w, int x, int y, int rw, int rh, int[] pixels) throws IOException {
+    copy(channel,FileChannel.MapMode.READ_WRITE,w,x,y,rw,rh,pixels);
+  }
+
+  private static void copy(FileChannel channel, FileChannel.MapMode mode, int w, int x, int y, int rw, int rh, int[] pixels) throws IOException {
+    int rows = (int)Math.max(1,Math.min(rh,MAP_MAX/(4L*w)));
+    for (int row=0; row<rh; row+=rows) {
+      int n = Math.min(rows,rh-row);
+
+      // from the first pixel of the first row
+      // to the last pixel of the last row
+      long from = (long)(y+row)*w+x;
+      long length = (long)(n-1)*w+rw;
+      MappedByteBuffer map = channel.map(mode,4L*from,4L*length);
+      IntBuffer ints = map.asIntBuffer();
+      for (int i=0; i<n; i++) {
+        ints.position(i*w);
+        if (mode==FileChannel.MapMode.READ_ONLY) {
+          ints.get(pixels,(row+i)*rw,rw);
+        } else {
+          ints.put(pixels,(row+i)*rw,rw);
+        }
+      }
+    }
+  }
+
+}
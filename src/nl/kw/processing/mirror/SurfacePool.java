@@ -0,0 +1,164 @@
+package nl.kw.processing.mirror;
+import processing.core.*;
+import java.util.ArrayList;
+
+/**
+* A pool of offscreen surfaces and pixel buffers that mirrors
+* borrow instead of creating their own. A mirror takes the
+* mirage, mask and scratch buffers it needs from the pool and
+* gives them back when it no longer needs them, or when it is
+* used on an image of another size, so dozens of mirrors share
+* a few frame sized buffers.<br><br>
+*
+* The pool only keeps the surfaces and buffers nobody uses.
+* When those pass the budget in bytes, the ones given back
+* longest ago are dropped first. Use prewarm() in setup() to
+* create surfaces before the first draw(). One pool can be
+* shared by several mirrors, also on other threads.
+*/
+
+public class SurfacePool {
+
+  private PApplet applet;
+  private long budget;
+  private long bytes=0;
+
+  private int hits=0;
+  private int misses=0;
+
+  // the idle surfaces and buffers, the
+  // one given back longest ago first
+  private ArrayList<Object> idle = new ArrayList<Object>();
+
+  public SurfacePool(PApplet applet, long budget) {
+    if (budget<0) {
+      throw new RuntimeException("SurfacePool: illegal budget "+budget);
+    }
+    this.applet = applet;
+    this.budget = budget;
+  }
+
+  /*
+    getters and setters
+  */
+
+  public synchronized void setBudget(long budget) {
+      this.budget = budget;
+      this.evict();
+  }
+  public synchronized long getBudget() {
+      return this.budget;
+  }
+
+  /**
+  * The bytes of the idle surfaces and buffers
+  */
+
+  public synchronized long getBytes() {
+      return this.bytes;
+  }
+  public synchronized int size() {
+      return this.idle.size();
+  }
+  public synchronized int getHits() {
+      return this.hits;
+  }
+  public synchronized int getMisses() {
+      return this.misses;
+  }
+
+  public synchronized void clear() {
+    idle.clear();
+    bytes = 0;
+  }
+
+  /**
+  * Create n surfaces of w x h pixels and the pixel
+  * buffers to go with them, as far as the budget allows
+  */
+
+  public void prewarm(int w, int h, int n) {
+    for (int i=0; i<n; i++) {
+      PGraphics surface = createSurface(applet,w,h);
+      putSurface(surface);
+      putBuffer(new int[w*h]);
+    }
+  }
+
+  /* ---------------
+    package methods
+  ----------- */
+
+  // take an idle surface of w x h, or null if there is none
+  synchronized PGraphics takeSurface(int w, int h) {
+    for (int i=idle.size()-1; i>=0; i--) {
+      Object o = idle.get(i);
+      if (o instanceof PGraphics) {
+        PGraphics surface = (PGraphics)o;
+        if (surface.width==w && surface.height==h) {
+          idle.remove(i);
+          bytes -= getSize(surface);
+          hits++;
+          return surface;
+        }
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  synchronized void putSurface(PGraphics surface) {
+    if (surface==null || idle.contains(surface)) return;
+    idle.add(surface);
+    bytes += getSize(surface);
+    evict();
+  }
+
+  // take an idle buffer of length ints, or a new one
+  synchronized int[] takeBuffer(int length) {
+    for (int i=idle.size()-1; i>=0; i--) {
+      Object o = idle.get(i);
+      if (o instanceof int[] && ((int[])o).length==length) {
+        idle.remove(i);
+        bytes -= 4L*length;
+        hits++;
+        return (int[])o;
+      }
+    }
+    misses++;
+    return new int[length];
+  }
+
+  synchronized void putBuffer(int[] buffer) {
+    if (buffer==null || idle.contains(buffer)) return;
+    idle.add(buffer);
+    bytes += 4L*buffer.length;
+    evict();
+  }
+
+  // a JAVA2D surface only gets its image in beginDraw(),
+  // and the pixels[] paths need that image before any
+  // drawing, so draw nothing on a new surface once
+  static PGraphics createSurface(PApplet applet, int w, int h) {
+    PGraphics surface = applet.createGraphics(w,h);
+    surface.beginDraw();
+    surface.endDraw();
+    return surface;
+  }
+
+  /* ---------------
+    internal methods
+  ----------- */
+
+  private void evict() {
+    while (bytes>budget && !idle.isEmpty()) {
+      Object o = idle.remove(0);
+      bytes -= (o instanceof int[])?4L*((int[])o).length:getSize((PGraphics)o);
+    }
+  }
+
+  private static long getSize(PGraphics surface) {
+    return 4L*surface.pixelWidth*surface.pixelHeight;
+  }
+
+}